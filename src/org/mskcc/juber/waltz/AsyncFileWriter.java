@@ -0,0 +1,235 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Writes text to a file on a background thread. Text is collected into
+ *         large buffers that are handed to the writer thread through a bounded
+ *         queue, so the caller only blocks when the file system falls behind
+ *         by more than the queue can hold. Data reaches the file when a buffer
+ *         fills up and on close(). An error on the writer thread is reported
+ *         by the next write() or by close().
+ * 
+ */
+public class AsyncFileWriter
+{
+	private static final int bufferSize = 256 * 1024;
+	private static final int queuedBuffers = 16;
+	/**
+	 * tells the writer thread that there is nothing more to write
+	 */
+	private static final ByteBuffer end = ByteBuffer.allocate(0);
+
+	private String fileName;
+	private OutputStream out;
+	private Charset charset;
+	private ByteBuffer current;
+	private BlockingQueue<ByteBuffer> queue;
+	private Thread thread;
+	private volatile IOException error;
+	private boolean closed;
+
+	public AsyncFileWriter(String fileName) throws IOException
+	{
+		this(fileName, new FileOutputStream(fileName));
+	}
+
+	/**
+	 * 
+	 * @param fileName
+	 *            used in thread names and error messages
+	 * @param out
+	 *            written to only by the writer thread and closed by close()
+	 */
+	public AsyncFileWriter(String fileName, OutputStream out)
+	{
+		this.fileName = fileName;
+		this.out = out;
+		this.charset = Charset.defaultCharset();
+		this.current = ByteBuffer.allocate(bufferSize);
+		this.queue = new ArrayBlockingQueue<ByteBuffer>(queuedBuffers);
+		this.thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				drain();
+			}
+		}, "writer-" + fileName);
+
+		// don't keep the JVM alive if the output is never closed, e.g. after
+		// an error
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void write(String string) throws IOException
+	{
+		write(string.getBytes(charset));
+	}
+
+	/**
+	 * 
+	 * @param bytes
+	 *            must not be modified after this call
+	 * @throws IOException
+	 */
+	public synchronized void write(byte[] bytes) throws IOException
+	{
+		checkError();
+		if (bytes.length > current.remaining())
+		{
+			handOff();
+		}
+
+		if (bytes.length > current.remaining())
+		{
+			// larger than a whole buffer, hand it off by itself
+			enqueue(ByteBuffer.wrap(bytes));
+		}
+		else
+		{
+			current.put(bytes);
+		}
+	}
+
+	/**
+	 * write out everything written so far, wait for the writer thread to
+	 * finish and close the file
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException
+	{
+		if (closed)
+		{
+			return;
+		}
+
+		closed = true;
+		try
+		{
+			handOff();
+			enqueue(end);
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing " + fileName, e);
+		}
+		finally
+		{
+			if (thread.isAlive())
+			{
+				thread.interrupt();
+			}
+		}
+
+		checkError();
+	}
+
+	private void handOff() throws IOException
+	{
+		if (current.position() == 0)
+		{
+			return;
+		}
+
+		current.flip();
+		enqueue(current);
+		current = ByteBuffer.allocate(bufferSize);
+	}
+
+	private void enqueue(ByteBuffer buffer) throws IOException
+	{
+		try
+		{
+			// block if the writer thread is behind, unless it has stopped
+			while (!queue.offer(buffer, 100, TimeUnit.MILLISECONDS))
+			{
+				checkError();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing " + fileName, e);
+		}
+	}
+
+	private void checkError() throws IOException
+	{
+		if (error != null)
+		{
+			throw new IOException("Could not write " + fileName, error);
+		}
+	}
+
+	/**
+	 * the writer thread
+	 */
+	private void drain()
+	{
+		try
+		{
+			try
+			{
+				ByteBuffer buffer;
+				while ((buffer = queue.take()) != end)
+				{
+					out.write(buffer.array(),
+							buffer.arrayOffset() + buffer.position(),
+							buffer.remaining());
+				}
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch (IOException e)
+		{
+			error = e;
+		}
+		catch (InterruptedException e)
+		{
+			error = new IOException("Writer thread interrupted", e);
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FilenameUtils;
+import org.mskcc.juber.waltz.pileup.processors.GenotypingProcessor;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.util.IntervalList;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Genotyping for a batch of bam files in one run. The maf file is
+ *         parsed, and the genotype index and the genotyping intervals are
+ *         built, once for the batch. The samples are then processed on the
+ *         given number of threads, one sample per thread, each with a copy of
+ *         the processor and its own output files, same as from the Genotyping
+ *         module of Waltz.
+ * 
+ *         All the bam files must be aligned to the same reference.
+ * 
+ */
+public class BatchGenotyping
+{
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		// leave the positional arguments in args
+		List<String> positionalArgs = new ArrayList<String>();
+		int threads = Waltz.readThreadsOption(args, positionalArgs);
+
+		args = positionalArgs.toArray(new String[positionalArgs.size()]);
+
+		final int minimumMappingQuality = Integer.parseInt(args[0]);
+		List<String> bamFiles = readBamList(new File(args[1]));
+		final File referenceFastaFile = new File(args[2]);
+		File mafFile = new File(args[3]);
+		int policy = 0;
+		if (args.length == 5)
+		{
+			policy = Integer.parseInt(args[4]);
+		}
+
+		final int readPairMismatchPolicy = policy;
+
+		long start = System.currentTimeMillis();
+
+		// the processor and the intervals, once for all the samples
+		SamReader reader = openReader(bamFiles.get(0));
+		SAMFileHeader header = reader.getFileHeader();
+		reader.close();
+
+		IndexedFastaSequenceFile referenceFasta = new IndexedFastaSequenceFile(
+				referenceFastaFile);
+		final GenotypingProcessor processor = new GenotypingProcessor(mafFile,
+				referenceFasta);
+		final IntervalList intervalList = WaltzWorker
+				.makeGenotypingIntervalList(
+						processor.getGenotypesAsIntervals(), header);
+
+		System.out.println("Genotyping " + bamFiles.size() + " samples on "
+				+ threads + " threads");
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final String bamFile : bamFiles)
+		{
+			futures.add(executor.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					genotype(bamFile, processor, intervalList,
+							minimumMappingQuality, referenceFastaFile,
+							readPairMismatchPolicy);
+					return null;
+				}
+			}));
+		}
+
+		executor.shutdown();
+
+		// one failed sample does not stop the others
+		int failed = 0;
+		for (int i = 0; i < futures.size(); i++)
+		{
+			try
+			{
+				futures.get(i).get();
+			}
+			catch (InterruptedException e)
+			{
+				throw new IOException(e);
+			}
+			catch (ExecutionException e)
+			{
+				failed++;
+				System.err.println("Problem genotyping " + bamFiles.get(i));
+				e.getCause().printStackTrace();
+			}
+		}
+
+		referenceFasta.close();
+
+		long time = System.currentTimeMillis() - start;
+		System.out.println(
+				"Program finished in " + (time * 1.0) / 1000 + " seconds\n");
+
+		if (failed != 0)
+		{
+			System.err.println(failed + " of " + bamFiles.size()
+					+ " samples failed");
+			System.exit(1);
+		}
+	}
+
+	private static void genotype(String bamFile, GenotypingProcessor processor,
+			IntervalList intervalList, int minimumMappingQuality,
+			File referenceFastaFile, int readPairMismatchPolicy)
+			throws IOException
+	{
+		long start = System.currentTimeMillis();
+
+		String bamIndexFile = FilenameUtils.removeExtension(bamFile) + ".bai";
+		String sampleName = FilenameUtils
+				.removeExtension(new File(bamFile).getName());
+
+		SamReader reader = openReader(bamFile);
+		int[] insertSize = Waltz.estimateInsertSize(new File(bamFile), reader,
+				99.0);
+		reader.close();
+
+		WaltzOutput output = new WaltzOutput(sampleName);
+		output.enableForGenotypes(processor.getMafHeader());
+		WaltzWorker worker = new WaltzWorker(processor.copy(),
+				minimumMappingQuality, bamFile, bamIndexFile,
+				referenceFastaFile, intervalList, readPairMismatchPolicy,
+				insertSize, 1, false, output);
+		worker.process();
+		output.close();
+
+		long time = System.currentTimeMillis() - start;
+		System.out.println("Genotyped " + sampleName + " in "
+				+ (time * 1.0) / 1000 + " seconds");
+	}
+
+	private static SamReader openReader(String bamFile)
+	{
+		SamReaderFactory factory = SamReaderFactory.makeDefault();
+		SamInputResource resource = SamInputResource.of(new File(bamFile))
+				.index(new File(
+						FilenameUtils.removeExtension(bamFile) + ".bai"));
+		return factory.open(resource);
+	}
+
+	/**
+	 * 
+	 * @param bamListFile
+	 *            one bam file path per line
+	 * @return
+	 * @throws IOException
+	 */
+	private static List<String> readBamList(File bamListFile)
+			throws IOException
+	{
+		List<String> bamFiles = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(
+				new FileReader(bamListFile));
+		String line = null;
+		while ((line = reader.readLine()) != null)
+		{
+			line = line.trim();
+			if (!line.isEmpty())
+			{
+				bamFiles.add(line);
+			}
+		}
+
+		reader.close();
+		return bamFiles;
+	}
+}
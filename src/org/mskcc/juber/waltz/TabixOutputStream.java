@@ -0,0 +1,286 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Writes tab-separated text as a BGZF file and, on close, a tabix
+ *         index (.tbi) next to it. Lines are indexed as they are written so
+ *         the data is only passed over once. If the lines turn out not to be
+ *         sorted by contig and start, the index is dropped with a warning and
+ *         only the BGZF file is written.
+ * 
+ *         Positions covered by overlapping intervals are written once per
+ *         interval, so a position file of overlapping intervals steps back to
+ *         positions it has already written. tabix readers stop at the first
+ *         line past the query and would miss the second copy, so such a file
+ *         gets no index either.
+ * 
+ */
+public class TabixOutputStream extends OutputStream
+{
+	/**
+	 * columns chr, position
+	 */
+	public static final TabixFormat positionFormat = new TabixFormat(
+			TabixFormat.GENERIC_FLAGS, 1, 2, 0, '#', 0);
+	/**
+	 * columns chr, start, end
+	 */
+	public static final TabixFormat intervalFormat = new TabixFormat(
+			TabixFormat.GENERIC_FLAGS, 1, 2, 3, '#', 0);
+
+	private String fileName;
+	private BlockCompressedOutputStream out;
+	private TabixFormat format;
+	private TabixIndexCreator indexCreator;
+
+	// state of the line being written
+	private long lineStart;
+	private int column;
+	private StringBuilder contig;
+	private int start;
+	private int end;
+
+	// the last indexed line
+	private String lastContig;
+	private int lastStart;
+	// first position of the unbroken run of positions ending at lastStart
+	private int runStart;
+	private Set<String> finishedContigs;
+
+	/**
+	 * 
+	 * @param fileName
+	 * @param format
+	 *            tells which columns have the contig, start and end
+	 * @throws IOException
+	 */
+	public TabixOutputStream(String fileName, TabixFormat format)
+			throws IOException
+	{
+		this.fileName = fileName;
+		this.out = new BlockCompressedOutputStream(new File(fileName));
+		this.format = format;
+		this.indexCreator = new TabixIndexCreator(format);
+		this.contig = new StringBuilder();
+		this.finishedContigs = new HashSet<String>();
+		startLine();
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		if (indexCreator == null)
+		{
+			out.write(b, off, len);
+			return;
+		}
+
+		// write line by line to know where each line starts
+		int lineOffset = off;
+		for (int i = off; i < off + len; i++)
+		{
+			if (b[i] == '\n')
+			{
+				out.write(b, lineOffset, i + 1 - lineOffset);
+				lineOffset = i + 1;
+				endLine();
+				startLine();
+			}
+			else
+			{
+				parse(b[i]);
+			}
+		}
+
+		out.write(b, lineOffset, off + len - lineOffset);
+	}
+
+	private void startLine()
+	{
+		lineStart = out.getFilePointer();
+		column = 1;
+		contig.setLength(0);
+		start = 0;
+		end = 0;
+	}
+
+	private void parse(byte b)
+	{
+		if (b == '\t')
+		{
+			column++;
+		}
+		else if (column == format.sequenceColumn)
+		{
+			contig.append((char) b);
+		}
+		else if (column == format.startPositionColumn)
+		{
+			start = start * 10 + (b - '0');
+		}
+		else if (column == format.endPositionColumn)
+		{
+			end = end * 10 + (b - '0');
+		}
+	}
+
+	private void endLine()
+	{
+		if (indexCreator == null || contig.length() == 0
+				|| contig.charAt(0) == format.metaCharacter)
+		{
+			return;
+		}
+
+		if (format.endPositionColumn == 0)
+		{
+			end = start;
+		}
+
+		// reuse the contig string while the contig does not change
+		if (lastContig == null || !lastContig.contentEquals(contig))
+		{
+			if (lastContig != null)
+			{
+				finishedContigs.add(lastContig);
+			}
+
+			lastContig = contig.toString();
+			lastStart = 0;
+			runStart = 0;
+			if (finishedContigs.contains(lastContig))
+			{
+				dropIndex("is not sorted by position");
+				return;
+			}
+		}
+
+		if (start < lastStart)
+		{
+			if (format.endPositionColumn == 0 && start >= runStart)
+			{
+				dropIndex("repeats the positions of overlapping intervals");
+			}
+			else
+			{
+				dropIndex("is not sorted by position");
+			}
+
+			return;
+		}
+
+		if (start > lastStart + 1)
+		{
+			runStart = start;
+		}
+
+		lastStart = start;
+		indexCreator.addFeature(new LineFeature(lastContig, start, end),
+				lineStart);
+	}
+
+	private void dropIndex(String reason)
+	{
+		System.err.println("Warning: " + fileName + " " + reason
+				+ ", not writing a tabix index");
+		indexCreator = null;
+	}
+
+	@Override
+	public void flush() throws IOException
+	{
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (indexCreator != null)
+		{
+			long finalPosition = out.getFilePointer();
+			out.close();
+			indexCreator.finalizeIndex(finalPosition)
+					.writeBasedOnFeatureFile(new File(fileName));
+		}
+		else
+		{
+			out.close();
+		}
+	}
+
+	private static class LineFeature implements Feature
+	{
+		private String contig;
+		private int start;
+		private int end;
+
+		public LineFeature(String contig, int start, int end)
+		{
+			this.contig = contig;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public String getContig()
+		{
+			return contig;
+		}
+
+		@Override
+		public int getStart()
+		{
+			return start;
+		}
+
+		@Override
+		public int getEnd()
+		{
+			return end;
+		}
+	}
+}
@@ -32,6 +32,8 @@ import java.util.Collections;
 import java.util.List;
 
 import org.apache.commons.io.FilenameUtils;
+import org.mskcc.juber.waltz.bam.InsertSizeEstimator;
+import org.mskcc.juber.waltz.countreads.StreamingCountReads;
 
 import com.google.common.base.Splitter;
 
@@ -76,6 +78,39 @@ public class Waltz
 		File intervalsBedFile = null;
 		int readPairMismatchPolicy = 0;
 		String inputMafFile = null;
+		int coverageThreshold = 0;
+		File transcriptsFile = null;
+		int threads = 1;
+		boolean streaming = false;
+		boolean binaryPileup = false;
+		boolean bgzip = false;
+
+		// read the options, they can appear anywhere. Leave the positional
+		// arguments in args
+		List<String> otherArgs = new ArrayList<String>();
+		threads = readThreadsOption(args, otherArgs);
+		List<String> positionalArgs = new ArrayList<String>();
+		for (String arg : otherArgs)
+		{
+			if (arg.equals("--streaming"))
+			{
+				streaming = true;
+			}
+			else if (arg.equals("--binary-pileup"))
+			{
+				binaryPileup = true;
+			}
+			else if (arg.equals("--bgzip"))
+			{
+				bgzip = true;
+			}
+			else
+			{
+				positionalArgs.add(arg);
+			}
+		}
+
+		args = positionalArgs.toArray(new String[positionalArgs.size()]);
 
 		// read module and its arguments
 		module = args[0];
@@ -90,6 +125,19 @@ public class Waltz
 				readPairMismatchPolicy = Integer.parseInt(args[5]);
 			}
 		}
+		else if (module.equals("QC"))
+		{
+			minimumMappingQuality = Integer.parseInt(args[1]);
+			bamFile = args[2];
+			referenceFastaFile = new File(args[3]);
+			intervalsBedFile = new File(args[4]);
+			coverageThreshold = Integer.parseInt(args[5]);
+			transcriptsFile = new File(args[6]);
+			if (args.length == 8)
+			{
+				readPairMismatchPolicy = Integer.parseInt(args[7]);
+			}
+		}
 		else if (module.equals("Genotyping"))
 		{
 			minimumMappingQuality = Integer.parseInt(args[1]);
@@ -119,13 +167,12 @@ public class Waltz
 				.index(new File(bamIndexFile));
 		SamReader reader = factory.open(resource);
 		SAMFileHeader header = reader.getFileHeader();
-		// TODO implement this method properly! It is broken!
-		int[] dummyInsertSize = estimateInsertSize(reader, 99.0);
+		int[] insertSize = estimateInsertSize(new File(bamFile), reader, 99.0);
 		reader.close();
 
 		IntervalList intervalList = null;
 
-		if (module.equals("PileupMetrics"))
+		if (module.equals("PileupMetrics") || module.equals("QC"))
 		{
 			IntervalList[] inputIntervalLists = makeIntervalLists(
 					intervalsBedFile, 1, header);
@@ -139,17 +186,36 @@ public class Waltz
 		}
 
 		WaltzOutput output = new WaltzOutput(sampleName);
+		output.setBinaryPileup(binaryPileup);
+		output.setBgzip(bgzip);
 
 		long start = System.currentTimeMillis();
 
-		WaltzWorker worker = new WaltzWorker(module, minimumMappingQuality,
-				bamFile, bamIndexFile, referenceFastaFile, intervalList,
-				readPairMismatchPolicy, inputMafFile, dummyInsertSize, output);
+		// QC is PileupMetrics and CountReads from one pass over the records
+		String workerModule = module.equals("QC") ? "PileupMetrics" : module;
+		WaltzWorker worker = new WaltzWorker(workerModule,
+				minimumMappingQuality, bamFile, bamIndexFile,
+				referenceFastaFile, intervalList, readPairMismatchPolicy,
+				inputMafFile, insertSize, threads, streaming, output);
+
+		StreamingCountReads countReads = null;
+		if (module.equals("QC"))
+		{
+			countReads = new StreamingCountReads(new File(bamFile), header,
+					coverageThreshold, transcriptsFile, intervalsBedFile,
+					intervalList.getIntervals());
+			worker.setCountReads(countReads);
+		}
 
 		// execute the worker
 		worker.process();
 
 		output.close();
+		if (countReads != null)
+		{
+			countReads.write();
+		}
+
 		long time = System.currentTimeMillis() - start;
 		System.out.println(
 				"Program finished in " + (time * 1.0) / 1000 + " seconds\n");
@@ -163,6 +229,36 @@ public class Waltz
 		 **/
 	}
 
+	/**
+	 * read the --threads N option, which can appear anywhere in the command
+	 * line, for the programs that take it
+	 * 
+	 * @param args
+	 *            the command line arguments
+	 * @param otherArgs
+	 *            the arguments other than --threads N are added to this list,
+	 *            in order
+	 * @return the number of threads, 1 if the option is not given
+	 */
+	public static int readThreadsOption(String[] args, List<String> otherArgs)
+	{
+		int threads = 1;
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("--threads"))
+			{
+				i++;
+				threads = Integer.parseInt(args[i]);
+			}
+			else
+			{
+				otherArgs.add(args[i]);
+			}
+		}
+
+		return threads;
+	}
+
 	/**
 	 * make given number of interval lists from the given bed file
 	 * 
@@ -230,65 +326,14 @@ public class Waltz
 		}
 	}
 
-	private static int[] estimateInsertSize(SamReader reader,
-			double percentCovered) throws IOException
+	static int[] estimateInsertSize(File bamFile, SamReader reader,
+			double percentCovered)
 	{
-		// System.out.println("Estimating min and max insert sizes that contain
-		// "
-		// + percentCovered + "% of the inserts from sampled reads");
-
-		// System.out.println("Returning dummy range: 124 593");
-		return new int[] { 124, 593 };
-
-		// TODO the interval/reads to be sampled should be decided more
-		// systematically
-		/*
-		 * SAMRecordIterator iterator = reader.queryOverlapping("chr1",
-		 * 100000000,
-		 * 110000000);
-		 * 
-		 * List<Integer> insertsTemp = new ArrayList<Integer>();
-		 * 
-		 * while (iterator.hasNext())
-		 * {
-		 * SAMRecord record = iterator.next();
-		 * 
-		 * if (record.getReadUnmappedFlag() || record.getMateUnmappedFlag())
-		 * continue;
-		 * 
-		 * int insert = record.getInferredInsertSize();
-		 * 
-		 * if (insert <= 0)
-		 * continue;
-		 * 
-		 * insertsTemp.add(insert);
-		 * }
-		 * 
-		 * iterator.close();
-		 * 
-		 * double[] inserts = new double[insertsTemp.size()];
-		 * 
-		 * for (int i = 0; i < inserts.length; i++)
-		 * {
-		 * inserts[i] = insertsTemp.get(i);
-		 * }
-		 * 
-		 * insertsTemp = null;
-		 * 
-		 * Arrays.sort(inserts);
-		 * 
-		 * Percentile percentile = new Percentile();
-		 * percentile.setData(inserts);
-		 * double p = (100.0 - percentCovered) / 2;
-		 * 
-		 * double left = percentile.evaluate(p);
-		 * double right = percentile.evaluate(100 - p);
-		 * 
-		 * System.out.println((int) left + "\t" + (int) right);
-		 * 
-		 * return new int[] { (int) left, (int) right };
-		 * 
-		 */
+		int[] range = InsertSizeEstimator.estimate(bamFile, reader,
+				percentCovered);
+		System.out.println("Insert size range containing " + percentCovered
+				+ "% of the sampled inserts: " + range[0] + " " + range[1]);
+		return range;
 	}
 
 	private static IntervalList[] makeIntervalLists(int chunkSize,
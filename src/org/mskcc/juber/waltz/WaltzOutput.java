@@ -26,13 +26,19 @@
  */
 package org.mskcc.juber.waltz;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
 
+import org.mskcc.juber.waltz.pileup.binary.BinaryPileupWriter;
+
+import htsjdk.samtools.util.Interval;
+import htsjdk.tribble.index.tabix.TabixFormat;
+
 /**
  * @author Juber Patel
  *
+ *         Output files of a Waltz run. Each file is written on its own
+ *         background thread (see AsyncFileWriter) and is complete only after
+ *         close().
  */
 public class WaltzOutput
 {
@@ -45,47 +51,118 @@ public class WaltzOutput
 	 */
 
 	private String sampleName;
-	private BufferedWriter pileupWriter;
-	private BufferedWriter pileupWithoutDuplicatesWriter;
-	private BufferedWriter intervalsWriter;
-	private BufferedWriter intervalsWithoutDuplicatesWriter;
-	private BufferedWriter genotypesWriter;
-	// private BufferedWriter genotypesWithoutDuplicatesWriter;
+	private AsyncFileWriter pileupWriter;
+	private AsyncFileWriter pileupWithoutDuplicatesWriter;
+	private AsyncFileWriter intervalsWriter;
+	private AsyncFileWriter intervalsWithoutDuplicatesWriter;
+	private AsyncFileWriter genotypesWriter;
+	// private AsyncFileWriter genotypesWithoutDuplicatesWriter;
 	/**
 	 * only one writer, (no with or without duplicates)
 	 */
-	private BufferedWriter signatureIntervalsWriter;
+	private AsyncFileWriter signatureIntervalsWriter;
+	/**
+	 * write the pileups in the binary format instead of text
+	 */
+	private boolean binaryPileup;
+	private BinaryPileupWriter binaryPileupWriter;
+	private BinaryPileupWriter binaryPileupWithoutDuplicatesWriter;
+	/**
+	 * write the text pileup and intervals files as BGZF with tabix indexes
+	 */
+	private boolean bgzip;
 
 	public WaltzOutput(String sampleName)
 	{
 		this.sampleName = sampleName;
 	}
 
+	/**
+	 * must be called before enableForMetrics()
+	 * 
+	 * @param binaryPileup
+	 */
+	public void setBinaryPileup(boolean binaryPileup)
+	{
+		this.binaryPileup = binaryPileup;
+	}
+
+	public boolean isBinaryPileup()
+	{
+		return binaryPileup;
+	}
+
+	/**
+	 * must be called before enableForMetrics()
+	 * 
+	 * @param bgzip
+	 */
+	public void setBgzip(boolean bgzip)
+	{
+		this.bgzip = bgzip;
+	}
+
+	/**
+	 * open a writer for a metrics file, compressed and indexed if bgzip is
+	 * set. Compression and indexing happen on the writer thread.
+	 * 
+	 * @param fileName
+	 * @param format
+	 *            columns for the tabix index
+	 * @return
+	 * @throws IOException
+	 */
+	private AsyncFileWriter openMetricsWriter(String fileName,
+			TabixFormat format) throws IOException
+	{
+		if (bgzip)
+		{
+			return new AsyncFileWriter(fileName + ".gz",
+					new TabixOutputStream(fileName + ".gz", format));
+		}
+		else
+		{
+			return new AsyncFileWriter(fileName);
+		}
+	}
+
 	public void enableForMetrics() throws IOException
 	{
-		this.pileupWriter = new BufferedWriter(
-				new FileWriter(sampleName + "-pileup.txt"));
-		this.pileupWithoutDuplicatesWriter = new BufferedWriter(
-				new FileWriter(sampleName + "-pileup-without-duplicates.txt"));
-		this.intervalsWriter = new BufferedWriter(
-				new FileWriter(sampleName + "-intervals.txt"));
-		this.intervalsWithoutDuplicatesWriter = new BufferedWriter(
-				new FileWriter(
-						sampleName + "-intervals-without-duplicates.txt"));
+		if (binaryPileup)
+		{
+			this.binaryPileupWriter = new BinaryPileupWriter(
+					sampleName + "-pileup.bin");
+			this.binaryPileupWithoutDuplicatesWriter = new BinaryPileupWriter(
+					sampleName + "-pileup-without-duplicates.bin");
+		}
+		else
+		{
+			this.pileupWriter = openMetricsWriter(sampleName + "-pileup.txt",
+					TabixOutputStream.positionFormat);
+			this.pileupWithoutDuplicatesWriter = openMetricsWriter(
+					sampleName + "-pileup-without-duplicates.txt",
+					TabixOutputStream.positionFormat);
+		}
+
+		this.intervalsWriter = openMetricsWriter(sampleName + "-intervals.txt",
+				TabixOutputStream.intervalFormat);
+		this.intervalsWithoutDuplicatesWriter = openMetricsWriter(
+				sampleName + "-intervals-without-duplicates.txt",
+				TabixOutputStream.intervalFormat);
 	}
 
 	public void enableForGenotypes(String mafHeader) throws IOException
 	{
-		this.genotypesWriter = new BufferedWriter(
-				new FileWriter(sampleName + "-genotypes.maf"));
+		this.genotypesWriter = new AsyncFileWriter(
+				sampleName + "-genotypes.maf");
 		
 		write(genotypesWriter, mafHeader + "\n");
 	}
 
 	public void enableForSignatureFinding() throws IOException
 	{
-		this.signatureIntervalsWriter = new BufferedWriter(
-				new FileWriter(sampleName + "-signature-intervals.txt"));
+		this.signatureIntervalsWriter = new AsyncFileWriter(
+				sampleName + "-signature-intervals.txt");
 	}
 
 	public void close() throws IOException
@@ -94,6 +171,10 @@ public class WaltzOutput
 			pileupWriter.close();
 		if (pileupWithoutDuplicatesWriter != null)
 			pileupWithoutDuplicatesWriter.close();
+		if (binaryPileupWriter != null)
+			binaryPileupWriter.close();
+		if (binaryPileupWithoutDuplicatesWriter != null)
+			binaryPileupWithoutDuplicatesWriter.close();
 		if (intervalsWriter != null)
 			intervalsWriter.close();
 		if (intervalsWithoutDuplicatesWriter != null)
@@ -117,6 +198,25 @@ public class WaltzOutput
 		write(pileupWithoutDuplicatesWriter, string);
 	}
 
+	/**
+	 * 
+	 * @param interval
+	 * @param block
+	 *            binary pileup block of the interval, see PileupBlockEncoder
+	 * @throws IOException
+	 */
+	public void toBinaryPileupWriter(Interval interval, byte[] block)
+			throws IOException
+	{
+		binaryPileupWriter.write(interval, block);
+	}
+
+	public void toBinaryPileupWithoutDuplicatesWriter(Interval interval,
+			byte[] block) throws IOException
+	{
+		binaryPileupWithoutDuplicatesWriter.write(interval, block);
+	}
+
 	public void toIntervalsWriter(String string) throws IOException
 	{
 		write(intervalsWriter, string);
@@ -144,13 +244,10 @@ public class WaltzOutput
 		write(signatureIntervalsWriter, string);
 	}
 
-	private void write(BufferedWriter writer, String string) throws IOException
+	private void write(AsyncFileWriter writer, String string)
+			throws IOException
 	{
-		synchronized (writer)
-		{
-			writer.write(string);
-			writer.flush();
-		}
+		writer.write(string);
 	}
 
 	public String getSampleName()
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import htsjdk.samtools.util.Interval;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Holds in memory the output produced for a region so that regions
+ *         processed on different threads can be written out in the original
+ *         order
+ * 
+ */
+public class WaltzOutputBuffer extends WaltzOutput
+{
+	private StringBuilder pileup = new StringBuilder();
+	private StringBuilder pileupWithoutDuplicates = new StringBuilder();
+	private StringBuilder intervals = new StringBuilder();
+	private StringBuilder intervalsWithoutDuplicates = new StringBuilder();
+	private StringBuilder genotypes = new StringBuilder();
+	private StringBuilder signatureIntervals = new StringBuilder();
+	private List<Interval> binaryPileupIntervals = new ArrayList<Interval>();
+	private List<byte[]> binaryPileup = new ArrayList<byte[]>();
+	private List<Interval> binaryPileupWithoutDuplicatesIntervals = new ArrayList<Interval>();
+	private List<byte[]> binaryPileupWithoutDuplicates = new ArrayList<byte[]>();
+
+	public WaltzOutputBuffer(String sampleName)
+	{
+		super(sampleName);
+	}
+
+	/**
+	 * write the buffered output to the given output, in the order it was
+	 * received
+	 * 
+	 * @param output
+	 * @throws IOException
+	 */
+	public void writeTo(WaltzOutput output) throws IOException
+	{
+		if (pileup.length() != 0)
+			output.toPileupWriter(pileup.toString());
+		if (pileupWithoutDuplicates.length() != 0)
+			output.toPileupWithoutDuplicatesWriter(
+					pileupWithoutDuplicates.toString());
+		if (intervals.length() != 0)
+			output.toIntervalsWriter(intervals.toString());
+		if (intervalsWithoutDuplicates.length() != 0)
+			output.toIntervalsWithoutDuplicatesWriter(
+					intervalsWithoutDuplicates.toString());
+		if (genotypes.length() != 0)
+			output.toGenotypesWriter(genotypes.toString());
+		if (signatureIntervals.length() != 0)
+			output.toSignatureIntervalsWriter(signatureIntervals.toString());
+		for (int i = 0; i < binaryPileup.size(); i++)
+			output.toBinaryPileupWriter(binaryPileupIntervals.get(i),
+					binaryPileup.get(i));
+		for (int i = 0; i < binaryPileupWithoutDuplicates.size(); i++)
+			output.toBinaryPileupWithoutDuplicatesWriter(
+					binaryPileupWithoutDuplicatesIntervals.get(i),
+					binaryPileupWithoutDuplicates.get(i));
+	}
+
+	@Override
+	public void toPileupWriter(String string) throws IOException
+	{
+		pileup.append(string);
+	}
+
+	@Override
+	public void toPileupWithoutDuplicatesWriter(String string)
+			throws IOException
+	{
+		pileupWithoutDuplicates.append(string);
+	}
+
+	@Override
+	public void toBinaryPileupWriter(Interval interval, byte[] block)
+			throws IOException
+	{
+		binaryPileupIntervals.add(interval);
+		binaryPileup.add(block);
+	}
+
+	@Override
+	public void toBinaryPileupWithoutDuplicatesWriter(Interval interval,
+			byte[] block) throws IOException
+	{
+		binaryPileupWithoutDuplicatesIntervals.add(interval);
+		binaryPileupWithoutDuplicates.add(block);
+	}
+
+	@Override
+	public void toIntervalsWriter(String string) throws IOException
+	{
+		intervals.append(string);
+	}
+
+	@Override
+	public void toIntervalsWithoutDuplicatesWriter(String string)
+			throws IOException
+	{
+		intervalsWithoutDuplicates.append(string);
+	}
+
+	@Override
+	public void toGenotypesWriter(String string) throws IOException
+	{
+		genotypes.append(string);
+	}
+
+	@Override
+	public void toSignatureIntervalsWriter(String string) throws IOException
+	{
+		signatureIntervals.append(string);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		// nothing to close
+	}
+}
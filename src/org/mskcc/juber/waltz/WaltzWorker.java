@@ -28,21 +28,37 @@ package org.mskcc.juber.waltz;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.mskcc.juber.alignment.filters.AlignmentFilter;
 import org.mskcc.juber.genotype.GenotypeID;
+import org.mskcc.juber.waltz.bam.ParallelBamReader;
+import org.mskcc.juber.waltz.bam.WaltzBamReader;
+import org.mskcc.juber.waltz.countreads.StreamingCountReads;
 import org.mskcc.juber.waltz.pileup.RegionPileup;
+import org.mskcc.juber.waltz.pileup.StreamingPileup;
 import org.mskcc.juber.waltz.pileup.processors.GenotypingProcessor;
 import org.mskcc.juber.waltz.pileup.processors.PileupMetricsProcessor;
 import org.mskcc.juber.waltz.pileup.processors.PileupProcessor;
 import org.mskcc.juber.waltz.pileup.processors.SignatureFindingProcessor;
 
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
@@ -56,7 +72,16 @@ import htsjdk.samtools.util.IntervalList;
  */
 public class WaltzWorker
 {
+	/**
+	 * number of intervals per thread that may be processed ahead of the
+	 * interval being written out
+	 */
+	private static final int intervalsInFlightPerThread = 4;
+
 	private PileupProcessor processor;
+	private String bamFile;
+	private String bamIndexFile;
+	private File referenceFastaFile;
 	private SamReader reader;
 	private IntervalList intervalList;
 	private int insertMin;
@@ -67,27 +92,94 @@ public class WaltzWorker
 	private IndexedFastaSequenceFile referenceFasta;
 	private AlignmentFilter filter;
 	private int readPairMismatchPolicy;
+	private int threads;
+	private boolean streaming;
+	private StreamingCountReads countReads;
 
 	public WaltzWorker(String module, int minimumMappingQuality, String bamFile,
 			String bamIndexFile, File referenceFastaFile,
 			IntervalList intervalList, int readPairMismatchPolicy,
-			String moduleArgument, int[] insertSize, WaltzOutput output)
-			throws IOException
+			String moduleArgument, int[] insertSize, int threads,
+			boolean streaming, WaltzOutput output) throws IOException
 	{
-		SamReaderFactory factory = SamReaderFactory.makeDefault();
-		SamInputResource resource = SamInputResource.of(new File(bamFile))
-				.index(new File(bamIndexFile));
-		this.reader = factory.open(resource);
+		this.bamFile = bamFile;
+		this.bamIndexFile = bamIndexFile;
+		this.referenceFastaFile = referenceFastaFile;
+		this.reader = openReader();
 		this.intervalList = intervalList;
 		this.insertMin = insertSize[0];
 		this.insertMax = insertSize[1];
 		this.output = output;
 		this.referenceFasta = new IndexedFastaSequenceFile(referenceFastaFile);
 		this.readPairMismatchPolicy = readPairMismatchPolicy;
+		this.threads = threads;
+		this.streaming = streaming;
 		setFilter(minimumMappingQuality);
 		setProcessor(module, moduleArgument);
 	}
 
+	/**
+	 * make a worker with a processor that is already set up, e.g. a copy of
+	 * a processor shared by the samples of a batch. The intervals must
+	 * already be the ones for the processor and the output must already be
+	 * enabled for it.
+	 * 
+	 * @param processor
+	 * @param minimumMappingQuality
+	 * @param bamFile
+	 * @param bamIndexFile
+	 * @param referenceFastaFile
+	 * @param intervalList
+	 * @param readPairMismatchPolicy
+	 * @param insertSize
+	 * @param threads
+	 * @param streaming
+	 * @param output
+	 * @throws IOException
+	 */
+	public WaltzWorker(PileupProcessor processor, int minimumMappingQuality,
+			String bamFile, String bamIndexFile, File referenceFastaFile,
+			IntervalList intervalList, int readPairMismatchPolicy,
+			int[] insertSize, int threads, boolean streaming,
+			WaltzOutput output) throws IOException
+	{
+		this.bamFile = bamFile;
+		this.bamIndexFile = bamIndexFile;
+		this.referenceFastaFile = referenceFastaFile;
+		this.reader = openReader();
+		this.intervalList = intervalList;
+		this.insertMin = insertSize[0];
+		this.insertMax = insertSize[1];
+		this.output = output;
+		this.referenceFasta = new IndexedFastaSequenceFile(referenceFastaFile);
+		this.readPairMismatchPolicy = readPairMismatchPolicy;
+		this.threads = threads;
+		this.streaming = streaming;
+		this.processor = processor;
+		setFilter(minimumMappingQuality);
+	}
+
+	private SamReader openReader()
+	{
+		SamReaderFactory factory = SamReaderFactory.makeDefault();
+		SamInputResource resource = SamInputResource.of(new File(bamFile))
+				.index(new File(bamIndexFile));
+		return factory.open(resource);
+	}
+
+	/**
+	 * also collect the CountReads metrics, from the same pass over the
+	 * records. This makes the worker read the whole bam file once, in
+	 * streaming mode.
+	 * 
+	 * @param countReads
+	 */
+	public void setCountReads(StreamingCountReads countReads)
+	{
+		this.countReads = countReads;
+		this.streaming = true;
+	}
+
 	private void setFilter(int minimumMappingQuality)
 	{
 		filter = new AlignmentFilter(minimumMappingQuality);
@@ -98,7 +190,7 @@ public class WaltzWorker
 	{
 		if (module.equals("PileupMetrics"))
 		{
-			processor = new PileupMetricsProcessor();
+			processor = new PileupMetricsProcessor(output.isBinaryPileup());
 			output.enableForMetrics();
 		}
 		else if (module.equals("Genotyping"))
@@ -108,7 +200,8 @@ public class WaltzWorker
 					referenceFasta);
 			Set<Interval> genotypeIntervals = ((GenotypingProcessor) processor)
 					.getGenotypesAsIntervals();
-			makeGenotypingIntervalList(genotypeIntervals);
+			intervalList = makeGenotypingIntervalList(genotypeIntervals,
+					intervalList.getHeader());
 
 			// output.enableForMetrics();
 			output.enableForGenotypes(
@@ -132,21 +225,20 @@ public class WaltzWorker
 	/**
 	 * make interval list for genotyping from the mutations to be genotyped.
 	 * 
-	 * @param genotypes
+	 * @param genotypeIntervals
+	 * @param header
 	 * @return
 	 */
-	private void makeGenotypingIntervalList(Set<Interval> genotypeIntervals)
+	public static IntervalList makeGenotypingIntervalList(
+			Set<Interval> genotypeIntervals, SAMFileHeader header)
 	{
 		// intervals within this distance will be merged. This helps with
 		// finding composite genotypes.
 		int mergeDistance = 100;
 
-		// make sure intervalList is empty
-		intervalList = new IntervalList(intervalList.getHeader());
+		IntervalList intervalList = new IntervalList(header);
 
-		// get the header from intervalList which is empty otherwise
-		IntervalList newIntervalList = new IntervalList(
-				intervalList.getHeader());
+		IntervalList newIntervalList = new IntervalList(header);
 		for (Interval genotypeInterval : genotypeIntervals)
 		{
 			newIntervalList.add(genotypeInterval);
@@ -188,7 +280,7 @@ public class WaltzWorker
 		intervalList.add(new Interval(contig, start, end, false, name));
 
 		// add some padding to each interval
-		intervalList = intervalList.padded(5, 5);
+		return intervalList.padded(5, 5);
 	}
 
 	/**
@@ -225,30 +317,305 @@ public class WaltzWorker
 	{
 		long start = System.currentTimeMillis();
 
-		// find out the maximum interval size
-		int maxIntervalLength = -1;
-		Iterator<Interval> it = intervalList.iterator();
-		while (it.hasNext())
+		if (streaming)
+		{
+			processStreaming();
+			long time = System.currentTimeMillis() - start;
+			System.out.println("Processed " + processedReads
+					+ " reads total in " + (time * 1.0) / 1000 + " seconds");
+			System.out.println(validReads + " valid reads");
+			return true;
+		}
+
+		// the first context uses the reader, reference and processor that
+		// are already open, the others get their own
+		List<PileupContext> contexts = new ArrayList<PileupContext>();
+		contexts.add(new PileupContext(reader, referenceFasta, processor));
+		for (int i = 1; i < threads; i++)
+		{
+			contexts.add(new PileupContext(openReader(),
+					new IndexedFastaSequenceFile(referenceFastaFile),
+					processor.copy()));
+		}
+
+		if (contexts.size() == 1)
+		{
+			PileupContext context = contexts.get(0);
+			// for each interval
+			for (Interval interval : intervalList)
+			{
+				context.process(interval, output);
+			}
+		}
+		else
+		{
+			processInParallel(contexts);
+		}
+
+		// clean up
+		for (PileupContext context : contexts)
+		{
+			processedReads += context.processedReads;
+			validReads += context.validReads;
+			context.close();
+		}
+
+		long time = System.currentTimeMillis() - start;
+
+		System.out.println("Processed " + processedReads + " reads total in "
+				+ (time * 1.0) / 1000 + " seconds");
+		System.out.println(validReads + " valid reads");
+
+		this.reader = null;
+		this.intervalList = null;
+
+		return true;
+
+	}
+
+	/**
+	 * process the intervals in coordinate order from one pass over the
+	 * records, instead of querying the index for every interval. There is one
+	 * query per contig, covering all the intervals on the contig. With more
+	 * than one thread, or when collecting CountReads metrics, the whole file
+	 * is read once instead, with the bgzf blocks inflated on the threads, and
+	 * the records outside the contig spans are skipped for the pileups.
+	 * 
+	 * The records are decoded into one reusable WaltzRecord, see
+	 * WaltzBamReader.
+	 * 
+	 * @throws IOException
+	 */
+	private void processStreaming() throws IOException
+	{
+		IntervalList sortedIntervals = intervalList.sorted();
+		StreamingPileup streamingPileup = new StreamingPileup(referenceFasta,
+				sortedIntervals, insertMin, insertMax, readPairMismatchPolicy,
+				processor, output);
+
+		// the span of the intervals on each contig, by contig index
+		SAMSequenceDictionary dictionary = reader.getFileHeader()
+				.getSequenceDictionary();
+		List<String> spanContigs = new ArrayList<String>();
+		int[] spanStarts = new int[dictionary.size()];
+		int[] spanEnds = new int[dictionary.size()];
+		Arrays.fill(spanStarts, -1);
+		for (Interval interval : sortedIntervals.getIntervals())
+		{
+			int contigIndex = dictionary.getSequenceIndex(interval.getContig());
+			if (contigIndex < 0)
+			{
+				continue;
+			}
+
+			if (spanStarts[contigIndex] == -1)
+			{
+				spanContigs.add(interval.getContig());
+				spanStarts[contigIndex] = interval.getStart();
+				spanEnds[contigIndex] = interval.getEnd();
+			}
+			else if (interval.getEnd() > spanEnds[contigIndex])
+			{
+				spanEnds[contigIndex] = interval.getEnd();
+			}
+		}
+
+		WaltzBamReader bamReader = new WaltzBamReader(new File(bamFile),
+				reader);
+		if (threads > 1 || countReads != null)
+		{
+			SAMRecordIterator iterator = null;
+			if (threads > 1)
+			{
+				iterator = new ParallelBamReader(new File(bamFile), threads,
+						true);
+			}
+			else
+			{
+				iterator = bamReader.iterator();
+			}
+
+			while (iterator.hasNext())
+			{
+				SAMRecord record = iterator.next();
+				if (countReads != null)
+				{
+					countReads.add(record);
+				}
+
+				int contigIndex = record.getReferenceIndex();
+				if (contigIndex < 0 || spanStarts[contigIndex] == -1)
+				{
+					continue;
+				}
+
+				// same overlap test as the index query
+				int start = record.getAlignmentStart();
+				int end = record.getReadUnmappedFlag() ? start
+						: record.getAlignmentEnd();
+				if (start > spanEnds[contigIndex]
+						|| end < spanStarts[contigIndex])
+				{
+					continue;
+				}
+
+				addStreamingRecord(record, streamingPileup);
+			}
+
+			iterator.close();
+		}
+		else
+		{
+			for (String contig : spanContigs)
+			{
+				int contigIndex = dictionary.getSequenceIndex(contig);
+				SAMRecordIterator iterator = bamReader.queryOverlapping(
+						contig, spanStarts[contigIndex], spanEnds[contigIndex]);
+				while (iterator.hasNext())
+				{
+					addStreamingRecord(iterator.next(), streamingPileup);
+				}
+
+				iterator.close();
+			}
+		}
+
+		streamingPileup.finish();
+
+		// clean up
+		bamReader.close();
+		reader.close();
+		referenceFasta.close();
+		this.reader = null;
+		this.intervalList = null;
+	}
+
+	private void addStreamingRecord(SAMRecord record,
+			StreamingPileup streamingPileup) throws IOException
+	{
+		processedReads++;
+		if (!filter.isGoodAlignment(record))
+		{
+			return;
+		}
+
+		validReads++;
+		streamingPileup.add(record);
+	}
+
+	/**
+	 * process the intervals on multiple threads, each with its own context.
+	 * The output for each interval is buffered and written in the interval
+	 * list order, so the output files are the same as those from a single
+	 * thread.
+	 * 
+	 * @param contexts
+	 * @throws IOException
+	 */
+	private void processInParallel(List<PileupContext> contexts)
+			throws IOException
+	{
+		final BlockingQueue<PileupContext> idleContexts = new ArrayBlockingQueue<PileupContext>(
+				contexts.size(), false, contexts);
+		ExecutorService executor = Executors
+				.newFixedThreadPool(contexts.size());
+		int maxInFlight = contexts.size() * intervalsInFlightPerThread;
+		Deque<Future<WaltzOutputBuffer>> inFlight = new ArrayDeque<Future<WaltzOutputBuffer>>();
+
+		try
 		{
-			Interval interval = it.next();
-			int length = interval.getEnd() - interval.getStart() + 1;
-			if (length > maxIntervalLength)
+			for (final Interval interval : intervalList)
 			{
-				maxIntervalLength = length;
+				// wait for the oldest interval before going too far ahead
+				if (inFlight.size() == maxInFlight)
+				{
+					writeOut(inFlight.poll());
+				}
+
+				inFlight.add(executor.submit(new Callable<WaltzOutputBuffer>()
+				{
+					@Override
+					public WaltzOutputBuffer call() throws Exception
+					{
+						PileupContext context = idleContexts.take();
+						try
+						{
+							WaltzOutputBuffer buffer = new WaltzOutputBuffer(
+									output.getSampleName());
+							context.process(interval, buffer);
+							return buffer;
+						}
+						finally
+						{
+							idleContexts.put(context);
+						}
+					}
+				}));
 			}
+
+			while (!inFlight.isEmpty())
+			{
+				writeOut(inFlight.poll());
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
 		}
+	}
 
-		RegionPileup pileup = new RegionPileup(referenceFasta,
-				maxIntervalLength, insertMin, insertMax,
-				readPairMismatchPolicy);
+	private void writeOut(Future<WaltzOutputBuffer> future) throws IOException
+	{
+		try
+		{
+			future.get().writeTo(output);
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException(e.getCause());
+		}
+	}
 
-		// for each interval
-		for (Interval interval : intervalList)
+	/**
+	 * @author Juber Patel
+	 * 
+	 *         everything needed to pile up and process one interval at a
+	 *         time. Each thread works with its own context.
+	 * 
+	 */
+	private class PileupContext
+	{
+		private final SamReader reader;
+		private final WaltzBamReader bamReader;
+		private final IndexedFastaSequenceFile referenceFasta;
+		private final PileupProcessor processor;
+		private final RegionPileup pileup;
+		private int processedReads;
+		private int validReads;
+
+		public PileupContext(SamReader reader,
+				IndexedFastaSequenceFile referenceFasta,
+				PileupProcessor processor)
+		{
+			this.reader = reader;
+			this.bamReader = new WaltzBamReader(new File(bamFile), reader);
+			this.referenceFasta = referenceFasta;
+			this.processor = processor;
+			this.pileup = new RegionPileup(referenceFasta, insertMin,
+					insertMax, readPairMismatchPolicy, processor);
+		}
+
+		public void process(Interval interval, WaltzOutput output)
+				throws IOException
 		{
 			System.out.println(interval);
 
 			pileup.prepFor(interval);
-			SAMRecordIterator iterator = reader.queryOverlapping(
+			SAMRecordIterator iterator = bamReader.queryOverlapping(
 					interval.getContig(), interval.getStart(),
 					interval.getEnd());
 
@@ -263,6 +630,7 @@ public class WaltzWorker
 				}
 
 				validReads++;
+				pileup.flushBefore(record.getAlignmentStart(), output);
 
 				try
 				{
@@ -280,23 +648,14 @@ public class WaltzWorker
 
 			iterator.close();
 
-			pileup.giveViewTo(processor);
-			processor.processRegion(output);
+			pileup.process(output);
 		}
 
-		long time = System.currentTimeMillis() - start;
-
-		System.out.println("Processed " + processedReads + " reads total in "
-				+ (time * 1.0) / 1000 + " seconds");
-		System.out.println(validReads + " valid reads");
-
-		// clean up
-		referenceFasta.close();
-		pileup = null;
-		this.reader = null;
-		this.intervalList = null;
-
-		return true;
-
+		public void close() throws IOException
+		{
+			bamReader.close();
+			reader.close();
+			referenceFasta.close();
+		}
 	}
 }
@@ -0,0 +1,387 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.bam;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Random;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Estimates the range of insert sizes from a sample of proper pairs
+ *         drawn from randomly chosen 16 kb BAI bins. Contigs are chosen in
+ *         proportion to their aligned record counts from the index and the
+ *         inserts are kept in a fixed size int reservoir, so the cost does not
+ *         depend on the size of the bam file. The bins are drawn with a seed
+ *         that depends only on the size of the bam, so the same bam, or a copy
+ *         of it, always gives the same estimate. The estimate is cached in a
+ *         .insert-size file next to the bam, keyed by the size and the
+ *         modification time of the bam.
+ * 
+ */
+public class InsertSizeEstimator
+{
+	public static final int[] defaultRange = { 124, 593 };
+	public static final String cacheSuffix = ".insert-size";
+
+	private static final int binSize = 1 << 14;
+	private static final int binsToSample = 32;
+	private static final int probesPerBin = 256;
+	private static final int pairsPerBin = 128;
+	private static final int reservoirSize = 4096;
+	private static final int minimumSamples = 100;
+	// a safety cutoff for slow storage, so the estimate adds well under a
+	// second to startup. Sampling normally takes a small fraction of it.
+	private static final long timeLimit = 500;
+
+	/**
+	 * estimate the min and max insert sizes that contain the given percent of
+	 * the inserts, reusing the cached estimate if the bam has not changed.
+	 * Returns the default range if the bam has no index, too few proper pairs
+	 * could be sampled or sampling took longer than the time limit.
+	 * 
+	 * @param bamFile
+	 * @param reader
+	 *            reader for the bam file
+	 * @param percentCovered
+	 * @return {min, max}
+	 */
+	public static int[] estimate(File bamFile, SamReader reader,
+			double percentCovered)
+	{
+		File cacheFile = new File(bamFile.getPath() + cacheSuffix);
+		int[] range = readCache(cacheFile, bamFile, percentCovered);
+		if (range != null)
+		{
+			return range;
+		}
+
+		if (!reader.hasIndex())
+		{
+			System.err.println("No index for " + bamFile
+					+ ", using the default insert size range");
+			return defaultRange;
+		}
+
+		Random random = new Random(bamFile.length());
+		IntReservoir reservoir = new IntReservoir(reservoirSize, random);
+		if (!sample(reader, random, reservoir))
+		{
+			System.err.println("Sampling " + bamFile
+					+ " took too long, using the default insert size range");
+			return defaultRange;
+		}
+
+		if (reservoir.size() < minimumSamples)
+		{
+			System.err.println("Too few proper pairs sampled from " + bamFile
+					+ ", using the default insert size range");
+			return defaultRange;
+		}
+
+		int[] inserts = reservoir.sorted();
+		double p = (100.0 - percentCovered) / 2;
+		range = new int[] { (int) percentile(inserts, p),
+				(int) percentile(inserts, 100 - p) };
+
+		writeCache(cacheFile, bamFile, percentCovered, range);
+		return range;
+	}
+
+	/**
+	 * add the inserts of proper pairs from binsToSample randomly chosen bins
+	 * to the reservoir
+	 * 
+	 * @param reader
+	 * @param random
+	 * @param reservoir
+	 * @return false if the time limit ran out before all the bins were
+	 *         sampled
+	 */
+	private static boolean sample(SamReader reader, Random random,
+			IntReservoir reservoir)
+	{
+		long deadline = System.currentTimeMillis() + timeLimit;
+		SAMFileHeader header = reader.getFileHeader();
+		BAMIndex index = reader.indexing().getIndex();
+		int contigs = header.getSequenceDictionary().size();
+
+		// cumulative aligned record counts, for choosing contigs by weight
+		long[] cumulative = new long[contigs];
+		long total = 0;
+		for (int i = 0; i < contigs; i++)
+		{
+			total += index.getMetaData(i).getAlignedRecordCount();
+			cumulative[i] = total;
+		}
+
+		if (total == 0)
+		{
+			return true;
+		}
+
+		for (int b = 0; b < binsToSample; b++)
+		{
+			if (System.currentTimeMillis() > deadline)
+			{
+				return false;
+			}
+
+			long target = (long) (random.nextDouble() * total);
+			int contig = 0;
+			while (cumulative[contig] <= target)
+			{
+				contig++;
+			}
+
+			int bins = (header.getSequence(contig).getSequenceLength() - 1)
+					/ binSize + 1;
+			BAMFileSpan span = null;
+			for (int i = 0; i < probesPerBin; i++)
+			{
+				int start = random.nextInt(bins) * binSize + 1;
+				span = index.getSpanOverlapping(contig, start,
+						start + binSize - 1);
+				if (span != null && !span.isEmpty())
+				{
+					break;
+				}
+			}
+
+			if (span == null || span.isEmpty())
+			{
+				continue;
+			}
+
+			SAMRecordIterator iterator = reader.indexing().iterator(span);
+			int pairs = 0;
+			while (iterator.hasNext() && pairs < pairsPerBin)
+			{
+				// a bin can hold many records that are not proper pairs
+				if (System.currentTimeMillis() > deadline)
+				{
+					iterator.close();
+					return false;
+				}
+
+				SAMRecord record = iterator.next();
+				if (!record.getReadPairedFlag() || !record.getProperPairFlag()
+						|| record.getReadUnmappedFlag()
+						|| record.getMateUnmappedFlag()
+						|| record.isSecondaryOrSupplementary()
+						|| record.getDuplicateReadFlag())
+				{
+					continue;
+				}
+
+				// count each pair once, from its leftmost read
+				int insert = record.getInferredInsertSize();
+				if (insert <= 0)
+				{
+					continue;
+				}
+
+				reservoir.add(insert);
+				pairs++;
+			}
+
+			iterator.close();
+		}
+
+		return true;
+	}
+
+	/**
+	 * the p-th percentile of the sorted values, interpolated the same way as
+	 * commons-math Percentile
+	 * 
+	 * @param sorted
+	 * @param p
+	 * @return
+	 */
+	private static double percentile(int[] sorted, double p)
+	{
+		int n = sorted.length;
+		double position = p * (n + 1) / 100;
+		if (position < 1)
+		{
+			return sorted[0];
+		}
+
+		if (position >= n)
+		{
+			return sorted[n - 1];
+		}
+
+		int lower = (int) position;
+		double fraction = position - lower;
+		return sorted[lower - 1]
+				+ fraction * (sorted[lower] - sorted[lower - 1]);
+	}
+
+	/**
+	 * 
+	 * @param cacheFile
+	 * @param bamFile
+	 * @param percentCovered
+	 * @return the cached range, or null if there is no valid cached range
+	 */
+	private static int[] readCache(File cacheFile, File bamFile,
+			double percentCovered)
+	{
+		if (!cacheFile.exists())
+		{
+			return null;
+		}
+
+		BufferedReader cacheReader = null;
+		try
+		{
+			cacheReader = new BufferedReader(new FileReader(cacheFile));
+			String line = cacheReader.readLine();
+			if (line == null)
+			{
+				return null;
+			}
+
+			String[] words = line.split("\t");
+			if (words.length != 5
+					|| Long.parseLong(words[0]) != bamFile.length()
+					|| Long.parseLong(words[1]) != bamFile.lastModified()
+					|| Double.parseDouble(words[2]) != percentCovered)
+			{
+				return null;
+			}
+
+			return new int[] { Integer.parseInt(words[3]),
+					Integer.parseInt(words[4]) };
+		}
+		catch (IOException | NumberFormatException e)
+		{
+			return null;
+		}
+		finally
+		{
+			if (cacheReader != null)
+			{
+				try
+				{
+					cacheReader.close();
+				}
+				catch (IOException e)
+				{
+					// nothing to do
+				}
+			}
+		}
+	}
+
+	/**
+	 * write the estimate to the cache file. Failure to write is not an error,
+	 * the estimate is simply recomputed next time.
+	 * 
+	 * @param cacheFile
+	 * @param bamFile
+	 * @param percentCovered
+	 * @param range
+	 */
+	private static void writeCache(File cacheFile, File bamFile,
+			double percentCovered, int[] range)
+	{
+		try
+		{
+			Writer writer = new FileWriter(cacheFile);
+			writer.write(bamFile.length() + "\t" + bamFile.lastModified() + "\t"
+					+ percentCovered + "\t" + range[0] + "\t" + range[1]
+					+ "\n");
+			writer.close();
+		}
+		catch (IOException e)
+		{
+			System.err.println("Could not write " + cacheFile);
+		}
+	}
+
+	/**
+	 * a uniform random sample of fixed size over a stream of ints
+	 */
+	private static class IntReservoir
+	{
+		private int[] values;
+		private long seen;
+		private Random random;
+
+		private IntReservoir(int capacity, Random random)
+		{
+			this.values = new int[capacity];
+			this.random = random;
+		}
+
+		private void add(int value)
+		{
+			if (seen < values.length)
+			{
+				values[(int) seen] = value;
+			}
+			else
+			{
+				long slot = (long) (random.nextDouble() * (seen + 1));
+				if (slot < values.length)
+				{
+					values[(int) slot] = value;
+				}
+			}
+
+			seen++;
+		}
+
+		private int size()
+		{
+			return (int) Math.min(seen, values.length);
+		}
+
+		private int[] sorted()
+		{
+			int[] sorted = Arrays.copyOf(values, size());
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.bam;
+
+import java.util.List;
+
+import htsjdk.samtools.BAMRecord;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMRecord;
+
+/**
+ * @author Juber Patel
+ * 
+ *         The CIGAR of a record as BAM packs it: one int per element, the
+ *         length in the high 28 bits and the operator code in the low 4. For a
+ *         WaltzRecord or a BAM record the ints are read straight from its
+ *         binary data, without building the CigarElement list. The buffer is reused from record to
+ *         record.
+ * 
+ */
+public class PackedCigar
+{
+	// operator codes, as in the BAM specification
+	public static final int matchOrMismatch = 0;
+	public static final int insertion = 1;
+	public static final int deletion = 2;
+	public static final int skippedRegion = 3;
+	public static final int softClip = 4;
+	public static final int hardClip = 5;
+	public static final int padding = 6;
+	public static final int sequenceMatch = 7;
+	public static final int sequenceMismatch = 8;
+
+	private int[] elements = new int[16];
+	private int size;
+
+	/**
+	 * load the CIGAR of the given record
+	 * 
+	 * @param record
+	 */
+	public void load(SAMRecord record)
+	{
+		if (record instanceof WaltzRecord)
+		{
+			WaltzRecord waltzRecord = (WaltzRecord) record;
+			size = waltzRecord.getCigarLength();
+			ensureCapacity(size);
+			for (int i = 0; i < size; i++)
+			{
+				elements[i] = waltzRecord.getPackedCigarElement(i);
+			}
+
+			return;
+		}
+
+		if (record instanceof BAMRecord && load((BAMRecord) record))
+		{
+			return;
+		}
+
+		List<CigarElement> cigarElements = record.getCigar()
+				.getCigarElements();
+		ensureCapacity(cigarElements.size());
+		size = cigarElements.size();
+		for (int i = 0; i < size; i++)
+		{
+			CigarElement element = cigarElements.get(i);
+			elements[i] = element.getLength() << 4
+					| CigarOperator.enumToBinary(element.getOperator());
+		}
+	}
+
+	/**
+	 * the variable part of a BAM record starts with the NUL-terminated read
+	 * name, followed by the little-endian CIGAR ints
+	 * 
+	 * @param record
+	 * @return false if the record has no binary data to read the CIGAR from,
+	 *         because it was changed after it was decoded
+	 */
+	private boolean load(BAMRecord record)
+	{
+		byte[] data = record.getVariableBinaryRepresentation();
+		if (data == null)
+		{
+			return false;
+		}
+
+		int offset = 0;
+		while (data[offset] != 0)
+		{
+			offset++;
+		}
+
+		offset++;
+		size = record.getCigarLength();
+		ensureCapacity(size);
+		for (int i = 0; i < size; i++, offset += 4)
+		{
+			elements[i] = (data[offset] & 0xFF)
+					| (data[offset + 1] & 0xFF) << 8
+					| (data[offset + 2] & 0xFF) << 16
+					| (data[offset + 3] & 0xFF) << 24;
+		}
+
+		return true;
+	}
+
+	private void ensureCapacity(int capacity)
+	{
+		if (elements.length < capacity)
+		{
+			elements = new int[Math.max(capacity, elements.length * 2)];
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * 
+	 * @param i
+	 * @return the packed int for element i
+	 */
+	public int get(int i)
+	{
+		return elements[i];
+	}
+
+	public static int operator(int element)
+	{
+		return element & 0xF;
+	}
+
+	public static int length(int element)
+	{
+		return element >>> 4;
+	}
+}
@@ -0,0 +1,232 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.bam;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import htsjdk.samtools.BAMRecordCodec;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMFormatException;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Iterates over all the records of a bam file, in file order, with the
+ *         BGZF blocks inflated on the given number of threads by a
+ *         ParallelBlockCompressedInputStream. Use it in place of
+ *         SamReader.iterator() for whole-file scans, which are otherwise
+ *         limited by inflating on a single thread.
+ * 
+ *         The records can also be decoded into one reusable WaltzRecord
+ *         instead of a new SAMRecord each, for loops that only read them.
+ * 
+ */
+public class ParallelBamReader implements SAMRecordIterator
+{
+	private static final byte[] bamMagic = { 'B', 'A', 'M', 1 };
+
+	private SAMFileHeader header;
+	private ParallelBlockCompressedInputStream stream;
+	private BAMRecordCodec codec;
+	/**
+	 * the reusable record and its codec, if records are reused
+	 */
+	private WaltzRecord record;
+	private WaltzRecordCodec recordCodec;
+	private SAMRecord next;
+	private boolean done;
+
+	/**
+	 * 
+	 * @param bamFile
+	 * @param threads
+	 *            number of inflater threads
+	 * @throws IOException
+	 */
+	public ParallelBamReader(File bamFile, int threads) throws IOException
+	{
+		this(bamFile, threads, false);
+	}
+
+	/**
+	 * 
+	 * @param bamFile
+	 * @param threads
+	 *            number of inflater threads
+	 * @param reuseRecords
+	 *            decode every record into the same WaltzRecord. A record is
+	 *            then only valid until the next call to hasNext() and must not
+	 *            be modified.
+	 * @throws IOException
+	 */
+	public ParallelBamReader(File bamFile, int threads, boolean reuseRecords)
+			throws IOException
+	{
+		SamReader reader = SamReaderFactory.makeDefault().open(bamFile);
+		this.header = reader.getFileHeader();
+		reader.close();
+
+		this.stream = new ParallelBlockCompressedInputStream(bamFile, threads);
+		try
+		{
+			skipHeader(new BinaryCodec(stream));
+		}
+		catch (RuntimeException e)
+		{
+			stream.close();
+			throw e;
+		}
+
+		if (reuseRecords)
+		{
+			this.record = new WaltzRecord(header);
+			this.recordCodec = new WaltzRecordCodec(stream);
+		}
+		else
+		{
+			this.codec = new BAMRecordCodec(header);
+			codec.setInputStream(stream, bamFile.getName());
+		}
+	}
+
+	public SAMFileHeader getFileHeader()
+	{
+		return header;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		if (next == null && !done)
+		{
+			if (record == null)
+			{
+				next = codec.decode();
+			}
+			else
+			{
+				next = decodeIntoRecord() ? record : null;
+			}
+
+			done = next == null;
+		}
+
+		return next != null;
+	}
+
+	private boolean decodeIntoRecord()
+	{
+		try
+		{
+			return recordCodec.decode(record);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeIOException(e);
+		}
+	}
+
+	@Override
+	public SAMRecord next()
+	{
+		if (!hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+
+		SAMRecord record = next;
+		next = null;
+		return record;
+	}
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException("Not supported: remove");
+	}
+
+	@Override
+	public void close()
+	{
+		done = true;
+		next = null;
+		try
+		{
+			stream.close();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * the records are returned in file order
+	 */
+	@Override
+	public SAMRecordIterator assertSorted(SortOrder sortOrder)
+	{
+		return this;
+	}
+
+	/**
+	 * move the stream past the bam header: magic, header text and the
+	 * reference sequences. The header itself was read by the SamReader.
+	 * 
+	 * @param binaryCodec
+	 */
+	static void skipHeader(BinaryCodec binaryCodec)
+	{
+		byte[] magic = new byte[bamMagic.length];
+		binaryCodec.readBytes(magic);
+		if (!Arrays.equals(magic, bamMagic))
+		{
+			throw new SAMFormatException("Invalid BAM file header");
+		}
+
+		int textLength = binaryCodec.readInt();
+		binaryCodec.readBytes(new byte[textLength]);
+		int references = binaryCodec.readInt();
+		for (int i = 0; i < references; i++)
+		{
+			int nameLength = binaryCodec.readInt();
+			binaryCodec.readBytes(new byte[nameLength]);
+			// reference length
+			binaryCodec.readInt();
+		}
+	}
+}
@@ -0,0 +1,458 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.bam;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Reads a BGZF file (e.g. a bam file) as one uncompressed stream, like
+ *         BlockCompressedInputStream, but inflates the blocks on a pool of
+ *         threads. A reader thread splits the file into compressed blocks and
+ *         hands each one to the pool. The pending blocks are kept in file
+ *         order in a bounded queue, so reading ahead stops when the consumer
+ *         falls behind. Block buffers are recycled once the consumer is done
+ *         with them.
+ * 
+ */
+public class ParallelBlockCompressedInputStream extends InputStream
+{
+	private static final int blockHeaderLength = 18;
+	private static final int blockFooterLength = 8;
+	private static final int maxBlockSize = 65536;
+	/**
+	 * pending blocks per inflater thread
+	 */
+	private static final int blocksPerThread = 8;
+	/**
+	 * one per inflater thread
+	 */
+	private static final ThreadLocal<Inflater> threadInflater = new ThreadLocal<Inflater>()
+	{
+		@Override
+		protected Inflater initialValue()
+		{
+			return new Inflater(true);
+		}
+	};
+
+	private InputStream in;
+	private ExecutorService inflaters;
+	private Thread readerThread;
+	private BlockingQueue<Future<Block>> blocks;
+	private ConcurrentLinkedQueue<byte[]> freeCompressedBuffers;
+	private ConcurrentLinkedQueue<Block> freeBlocks;
+	private volatile boolean closed;
+
+	private Block current;
+	private int position;
+	private boolean endOfStream;
+
+	public ParallelBlockCompressedInputStream(File file, int threads)
+			throws IOException
+	{
+		this(new FileInputStream(file), threads);
+	}
+
+	public ParallelBlockCompressedInputStream(InputStream in, int threads)
+	{
+		if (threads < 1)
+		{
+			threads = 1;
+		}
+
+		this.in = new BufferedInputStream(in, maxBlockSize);
+		this.blocks = new ArrayBlockingQueue<Future<Block>>(
+				threads * blocksPerThread);
+		this.freeCompressedBuffers = new ConcurrentLinkedQueue<byte[]>();
+		this.freeBlocks = new ConcurrentLinkedQueue<Block>();
+
+		this.inflaters = Executors.newFixedThreadPool(threads,
+				new ThreadFactory()
+				{
+					@Override
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, "bgzf-inflater");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+
+		this.readerThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				readBlocks();
+			}
+		}, "bgzf-reader");
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if (!ensureAvailable())
+		{
+			return -1;
+		}
+
+		return current.data[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException
+	{
+		if (length == 0)
+		{
+			return 0;
+		}
+
+		int read = 0;
+		while (read < length && ensureAvailable())
+		{
+			int n = Math.min(length - read, current.length - position);
+			System.arraycopy(current.data, position, buffer, offset + read, n);
+			position += n;
+			read += n;
+		}
+
+		return read == 0 ? -1 : read;
+	}
+
+	@Override
+	public int available() throws IOException
+	{
+		return current == null ? 0 : current.length - position;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+		{
+			return;
+		}
+
+		closed = true;
+		readerThread.interrupt();
+		inflaters.shutdownNow();
+		try
+		{
+			readerThread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		in.close();
+	}
+
+	/**
+	 * make sure the current block has unread bytes, moving to the next
+	 * non-empty block if needed
+	 * 
+	 * @return false at the end of the stream
+	 * @throws IOException
+	 */
+	private boolean ensureAvailable() throws IOException
+	{
+		while (current == null || position == current.length)
+		{
+			if (closed)
+			{
+				throw new IOException("Stream closed");
+			}
+
+			if (endOfStream)
+			{
+				return false;
+			}
+
+			if (current != null)
+			{
+				freeBlocks.add(current);
+				current = null;
+			}
+
+			Block block = null;
+			try
+			{
+				block = blocks.take().get();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			catch (ExecutionException e)
+			{
+				endOfStream = true;
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+				{
+					throw (IOException) cause;
+				}
+
+				throw new IOException(cause);
+			}
+
+			if (block == null)
+			{
+				endOfStream = true;
+				return false;
+			}
+
+			current = block;
+			position = 0;
+		}
+
+		return true;
+	}
+
+	/**
+	 * runs on the reader thread: read the compressed blocks in file order and
+	 * queue them for inflation. The end of the file, or an error, is queued
+	 * as a completed task so that the consumer sees it in order.
+	 */
+	private void readBlocks()
+	{
+		try
+		{
+			while (!closed)
+			{
+				final byte[] compressed = readCompressedBlock();
+				if (compressed == null)
+				{
+					blocks.put(completed(new Callable<Block>()
+					{
+						@Override
+						public Block call() throws Exception
+						{
+							return null;
+						}
+					}));
+
+					return;
+				}
+
+				blocks.put(inflaters.submit(new Callable<Block>()
+				{
+					@Override
+					public Block call() throws Exception
+					{
+						return inflate(compressed);
+					}
+				}));
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// closed
+		}
+		catch (final IOException e)
+		{
+			try
+			{
+				blocks.put(completed(new Callable<Block>()
+				{
+					@Override
+					public Block call() throws Exception
+					{
+						throw e;
+					}
+				}));
+			}
+			catch (InterruptedException e1)
+			{
+				// closed
+			}
+		}
+	}
+
+	/**
+	 * read the next compressed block, header to footer
+	 * 
+	 * @return the block in a buffer at least as long as the block, or null at
+	 *         the end of the file
+	 * @throws IOException
+	 */
+	private byte[] readCompressedBlock() throws IOException
+	{
+		byte[] buffer = freeCompressedBuffers.poll();
+		if (buffer == null)
+		{
+			buffer = new byte[maxBlockSize];
+		}
+
+		int read = readFully(buffer, 0, blockHeaderLength);
+		if (read == 0)
+		{
+			return null;
+		}
+
+		if (read < blockHeaderLength || (buffer[0] & 0xff) != 31
+				|| (buffer[1] & 0xff) != 139 || (buffer[3] & 4) == 0
+				|| unsignedShort(buffer, 10) != 6 || buffer[12] != 'B'
+				|| buffer[13] != 'C')
+		{
+			throw new IOException("Invalid BGZF block header");
+		}
+
+		int blockSize = unsignedShort(buffer, 16) + 1;
+		if (blockSize < blockHeaderLength + blockFooterLength)
+		{
+			throw new IOException("Invalid BGZF block size: " + blockSize);
+		}
+
+		int remaining = blockSize - blockHeaderLength;
+		if (readFully(buffer, blockHeaderLength, remaining) < remaining)
+		{
+			throw new IOException("Truncated BGZF block");
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * runs on an inflater thread
+	 * 
+	 * @param compressed
+	 * @return
+	 * @throws IOException
+	 */
+	private Block inflate(byte[] compressed) throws IOException
+	{
+		int blockSize = unsignedShort(compressed, 16) + 1;
+		int uncompressedSize = littleEndianInt(compressed, blockSize - 4);
+		if (uncompressedSize < 0 || uncompressedSize > maxBlockSize)
+		{
+			throw new IOException(
+					"Invalid BGZF uncompressed size: " + uncompressedSize);
+		}
+
+		Block block = freeBlocks.poll();
+		if (block == null)
+		{
+			block = new Block();
+		}
+
+		block.length = uncompressedSize;
+		if (uncompressedSize == 0)
+		{
+			freeCompressedBuffers.add(compressed);
+			return block;
+		}
+
+		Inflater inflater = threadInflater.get();
+		inflater.reset();
+		inflater.setInput(compressed, blockHeaderLength,
+				blockSize - blockHeaderLength - blockFooterLength);
+		try
+		{
+			int inflated = inflater.inflate(block.data, 0, uncompressedSize);
+			if (inflated != uncompressedSize)
+			{
+				throw new IOException("BGZF block inflated to " + inflated
+						+ " bytes, expected " + uncompressedSize);
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException(e);
+		}
+
+		freeCompressedBuffers.add(compressed);
+		return block;
+	}
+
+	private int readFully(byte[] buffer, int offset, int length)
+			throws IOException
+	{
+		int read = 0;
+		while (read < length)
+		{
+			int n = in.read(buffer, offset + read, length - read);
+			if (n < 0)
+			{
+				break;
+			}
+
+			read += n;
+		}
+
+		return read;
+	}
+
+	private static Future<Block> completed(Callable<Block> callable)
+	{
+		FutureTask<Block> task = new FutureTask<Block>(callable);
+		task.run();
+		return task;
+	}
+
+	private static int unsignedShort(byte[] buffer, int offset)
+	{
+		return (buffer[offset] & 0xff) | ((buffer[offset + 1] & 0xff) << 8);
+	}
+
+	private static int littleEndianInt(byte[] buffer, int offset)
+	{
+		return (buffer[offset] & 0xff) | ((buffer[offset + 1] & 0xff) << 8)
+				| ((buffer[offset + 2] & 0xff) << 16)
+				| ((buffer[offset + 3] & 0xff) << 24);
+	}
+
+	/**
+	 * an uncompressed block
+	 */
+	private static class Block
+	{
+		private byte[] data = new byte[maxBlockSize];
+		private int length;
+	}
+}
@@ -0,0 +1,325 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.bam;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import htsjdk.samtools.BAMFileSpan;
+import htsjdk.samtools.BAMIndex;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.RuntimeIOException;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Reads the records of a bam file into one reusable WaltzRecord,
+ *         either all of them or those overlapping a region, found with the bam
+ *         index. The iterators return the same record object every time, so a
+ *         record is only valid until the next call to hasNext(). Only one
+ *         iterator may be used at a time.
+ * 
+ */
+public class WaltzBamReader implements Closeable
+{
+	private File bamFile;
+	private SAMFileHeader header;
+	private BAMIndex index;
+	private BlockCompressedInputStream stream;
+	private WaltzRecordCodec codec;
+	private WaltzRecord record;
+
+	/**
+	 * 
+	 * @param bamFile
+	 * @param reader
+	 *            reader for the bam file, for the header and the index. It is
+	 *            not closed by this reader.
+	 */
+	public WaltzBamReader(File bamFile, SamReader reader)
+	{
+		this.bamFile = bamFile;
+		this.header = reader.getFileHeader();
+		if (reader.hasIndex())
+		{
+			this.index = reader.indexing().getIndex();
+		}
+
+		this.record = new WaltzRecord(header);
+	}
+
+	public SAMFileHeader getFileHeader()
+	{
+		return header;
+	}
+
+	private BlockCompressedInputStream getStream() throws IOException
+	{
+		if (stream == null)
+		{
+			stream = new BlockCompressedInputStream(bamFile);
+			codec = new WaltzRecordCodec(stream);
+		}
+
+		return stream;
+	}
+
+	/**
+	 * 
+	 * @return iterator over all the records, in file order
+	 * @throws IOException
+	 */
+	public SAMRecordIterator iterator() throws IOException
+	{
+		BlockCompressedInputStream stream = getStream();
+		stream.seek(0);
+		ParallelBamReader.skipHeader(new BinaryCodec(stream));
+		return new RecordIterator(null, -1, 0, 0);
+	}
+
+	/**
+	 * 
+	 * @param contig
+	 * @param start
+	 * @param end
+	 *            0 or less for the end of the contig
+	 * @return iterator over the records whose alignments overlap the given
+	 *         region. Unmapped reads placed in the region count as 1 base
+	 *         long, as for SamReader.queryOverlapping().
+	 * @throws IOException
+	 */
+	public SAMRecordIterator queryOverlapping(String contig, int start,
+			int end) throws IOException
+	{
+		if (index == null)
+		{
+			throw new IllegalStateException(
+					"No index for " + bamFile.getName());
+		}
+
+		int referenceIndex = header.getSequenceIndex(contig);
+		if (referenceIndex < 0)
+		{
+			return new RecordIterator(new long[0], referenceIndex, start, end);
+		}
+
+		if (start < 1)
+		{
+			start = 1;
+		}
+
+		if (end < 1)
+		{
+			end = -1;
+		}
+
+		BAMFileSpan span = index.getSpanOverlapping(referenceIndex, start,
+				end);
+		long[] chunks = span == null ? new long[0] : span.toCoordinateArray();
+		return new RecordIterator(chunks, referenceIndex, start, end);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if (stream != null)
+		{
+			stream.close();
+			stream = null;
+		}
+	}
+
+	/**
+	 * iterates over the records in the given chunks of the file, or the rest
+	 * of the file
+	 */
+	private class RecordIterator implements SAMRecordIterator
+	{
+		/**
+		 * start and end virtual file pointers of the chunks to read, null to
+		 * read the rest of the file
+		 */
+		private final long[] chunks;
+		private final int referenceIndex;
+		private final int start;
+		private final int end;
+		private int chunk;
+		private boolean pending;
+		private boolean done;
+
+		private RecordIterator(long[] chunks, int referenceIndex, int start,
+				int end) throws IOException
+		{
+			this.chunks = chunks;
+			this.referenceIndex = referenceIndex;
+			this.start = start;
+			this.end = end;
+			if (chunks != null)
+			{
+				if (chunks.length == 0)
+				{
+					done = true;
+				}
+				else
+				{
+					getStream().seek(chunks[0]);
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			try
+			{
+				while (!pending && !done)
+				{
+					if (!nextInChunks() || !codec.decode(record))
+					{
+						done = true;
+					}
+					else if (chunks == null)
+					{
+						pending = true;
+					}
+					else
+					{
+						filter();
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeIOException(e);
+			}
+
+			return pending;
+		}
+
+		/**
+		 * move to the chunk the next record is in, if reading chunks
+		 * 
+		 * @return false if there are no more chunks
+		 * @throws IOException
+		 */
+		private boolean nextInChunks() throws IOException
+		{
+			if (chunks == null)
+			{
+				return true;
+			}
+
+			while (stream.getFilePointer() >= chunks[chunk + 1])
+			{
+				chunk += 2;
+				if (chunk >= chunks.length)
+				{
+					return false;
+				}
+
+				// adjacent chunks are read without seeking
+				if (stream.getFilePointer() < chunks[chunk])
+				{
+					stream.seek(chunks[chunk]);
+				}
+			}
+
+			return true;
+		}
+
+		/**
+		 * check the record against the region, the same way as the index
+		 * query of SamReader
+		 */
+		private void filter()
+		{
+			int recordReferenceIndex = record.getReferenceIndex();
+			int recordStart = record.getAlignmentStart();
+
+			// records are sorted, unmapped reads without a contig come last
+			if (recordReferenceIndex == -1
+					|| recordReferenceIndex > referenceIndex
+					|| (recordReferenceIndex == referenceIndex && end != -1
+							&& recordStart > end))
+			{
+				done = true;
+				return;
+			}
+
+			if (recordReferenceIndex < referenceIndex)
+			{
+				return;
+			}
+
+			// the end of an unmapped read is 0
+			int recordEnd = Math.max(recordStart, record.getAlignmentEnd());
+			pending = recordEnd >= start;
+		}
+
+		@Override
+		public SAMRecord next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+
+			pending = false;
+			return record;
+		}
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException("Not supported: remove");
+		}
+
+		@Override
+		public void close()
+		{
+			done = true;
+			pending = false;
+		}
+
+		/**
+		 * the records are returned in file order
+		 */
+		@Override
+		public SAMRecordIterator assertSorted(SortOrder sortOrder)
+		{
+			return this;
+		}
+	}
+}
@@ -0,0 +1,413 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.bam;
+
+import java.util.List;
+
+import htsjdk.samtools.BinaryTagCodec;
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMBinaryTagAndValue;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * @author Juber Patel
+ * 
+ *         A SAMRecord that is decoded from the binary BAM record by
+ *         WaltzRecordCodec and reused from record to record. The fixed-length
+ *         fields are decoded right away. The read name, bases, qualities,
+ *         CIGAR and attributes are decoded only when asked for, and the
+ *         alignment end is computed from the packed CIGAR without building a
+ *         Cigar. The bases and qualities are decoded into arrays that are
+ *         reused as long as the read length does not change.
+ * 
+ *         The record is read only: the SAMRecord setters don't change what the
+ *         getters return. It is only valid until the next record is decoded
+ *         into it, so it must not be kept.
+ * 
+ */
+public class WaltzRecord extends SAMRecord
+{
+	private static final long serialVersionUID = 1L;
+	private static final byte[] baseCodes = "=ACMGRSVTWYHKDBN".getBytes();
+	/**
+	 * length of the fixed part of a BAM record, after the block size
+	 */
+	private static final int fixedLength = 32;
+
+	/**
+	 * contig names and boxed indexes, by contig index + 1 so that -1, no
+	 * contig, is at 0
+	 */
+	private final String[] referenceNames;
+	private final Integer[] referenceIndexes;
+
+	/**
+	 * the binary record, after the block size
+	 */
+	private byte[] data = new byte[1024];
+	private int length;
+
+	private int referenceIndex;
+	private int mateReferenceIndex;
+	private int readNameLength;
+	private int cigarLength;
+	private int readLength;
+	private int cigarOffset;
+	private int basesOffset;
+	private int qualitiesOffset;
+	private int attributesOffset;
+
+	private int alignmentEnd;
+	private String readName;
+	private byte[] readBases = new byte[0];
+	private boolean readBasesDecoded;
+	private byte[] baseQualities = new byte[0];
+	private boolean baseQualitiesDecoded;
+	private Cigar cigar;
+	private boolean attributesDecoded;
+
+	public WaltzRecord(SAMFileHeader header)
+	{
+		super(header);
+
+		List<SAMSequenceRecord> sequences = header.getSequenceDictionary()
+				.getSequences();
+		referenceNames = new String[sequences.size() + 1];
+		referenceIndexes = new Integer[sequences.size() + 1];
+		referenceNames[0] = NO_ALIGNMENT_REFERENCE_NAME;
+		referenceIndexes[0] = NO_ALIGNMENT_REFERENCE_INDEX;
+		for (int i = 0; i < sequences.size(); i++)
+		{
+			referenceNames[i + 1] = sequences.get(i).getSequenceName();
+			referenceIndexes[i + 1] = i;
+		}
+	}
+
+	/**
+	 * 
+	 * @param length
+	 * @return the buffer to read a binary record of the given length into
+	 */
+	byte[] buffer(int length)
+	{
+		if (data.length < length)
+		{
+			data = new byte[Math.max(length, data.length * 2)];
+		}
+
+		return data;
+	}
+
+	/**
+	 * decode the fixed-length fields of the binary record in the buffer and
+	 * forget the lazily decoded fields of the previous record
+	 * 
+	 * @param length
+	 *            length of the record in the buffer
+	 */
+	void decode(int length)
+	{
+		this.length = length;
+		referenceIndex = intAt(0);
+		mateReferenceIndex = intAt(20);
+		readNameLength = data[8] & 0xFF;
+		cigarLength = unsignedShortAt(12);
+		readLength = intAt(16);
+		cigarOffset = fixedLength + readNameLength;
+		basesOffset = cigarOffset + 4 * cigarLength;
+		qualitiesOffset = basesOffset + (readLength + 1) / 2;
+		attributesOffset = qualitiesOffset + readLength;
+
+		// the eagerly decoded fields are kept by SAMRecord
+		mReferenceIndex = referenceIndexes[referenceIndex + 1];
+		mMateReferenceIndex = referenceIndexes[mateReferenceIndex + 1];
+		setAlignmentStart(intAt(4) + 1);
+		setMappingQuality(data[9] & 0xFF);
+		setFlags(unsignedShortAt(14));
+		setMateAlignmentStart(intAt(24) + 1);
+		setInferredInsertSize(intAt(28));
+
+		// clears the cigar string and alignment blocks cached by SAMRecord
+		initializeCigar(null);
+		setAttributes(null);
+
+		alignmentEnd = -1;
+		readName = null;
+		readBasesDecoded = false;
+		baseQualitiesDecoded = false;
+		cigar = null;
+		attributesDecoded = false;
+	}
+
+	private int intAt(int offset)
+	{
+		return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8
+				| (data[offset + 2] & 0xFF) << 16
+				| (data[offset + 3] & 0xFF) << 24;
+	}
+
+	private int unsignedShortAt(int offset)
+	{
+		return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+	}
+
+	/**
+	 * 
+	 * @param i
+	 * @return CIGAR element i, packed as in the BAM record: the length in the
+	 *         high 28 bits and the operator code in the low 4
+	 */
+	public int getPackedCigarElement(int i)
+	{
+		return intAt(cigarOffset + 4 * i);
+	}
+
+	@Override
+	public int getCigarLength()
+	{
+		return cigarLength;
+	}
+
+	@Override
+	public Cigar getCigar()
+	{
+		if (cigar == null)
+		{
+			cigar = new Cigar();
+			for (int i = 0; i < cigarLength; i++)
+			{
+				int element = getPackedCigarElement(i);
+				cigar.add(new CigarElement(PackedCigar.length(element),
+						CigarOperator
+								.binaryToEnum(PackedCigar.operator(element))));
+			}
+		}
+
+		return cigar;
+	}
+
+	@Override
+	public int getAlignmentEnd()
+	{
+		if (getReadUnmappedFlag())
+		{
+			return NO_ALIGNMENT_START;
+		}
+
+		if (alignmentEnd == -1)
+		{
+			int referenceLength = 0;
+			for (int i = 0; i < cigarLength; i++)
+			{
+				int element = getPackedCigarElement(i);
+				switch (PackedCigar.operator(element))
+				{
+					case PackedCigar.matchOrMismatch:
+					case PackedCigar.deletion:
+					case PackedCigar.skippedRegion:
+					case PackedCigar.sequenceMatch:
+					case PackedCigar.sequenceMismatch:
+						referenceLength += PackedCigar.length(element);
+						break;
+					default:
+						break;
+				}
+			}
+
+			alignmentEnd = getAlignmentStart() + referenceLength - 1;
+		}
+
+		return alignmentEnd;
+	}
+
+	@Override
+	public int getUnclippedStart()
+	{
+		int unclippedStart = getAlignmentStart();
+		for (int i = 0; i < cigarLength; i++)
+		{
+			int element = getPackedCigarElement(i);
+			if (!isClip(element))
+			{
+				break;
+			}
+
+			unclippedStart -= PackedCigar.length(element);
+		}
+
+		return unclippedStart;
+	}
+
+	@Override
+	public int getUnclippedEnd()
+	{
+		int unclippedEnd = getAlignmentEnd();
+		for (int i = cigarLength - 1; i >= 0; i--)
+		{
+			int element = getPackedCigarElement(i);
+			if (!isClip(element))
+			{
+				break;
+			}
+
+			unclippedEnd += PackedCigar.length(element);
+		}
+
+		return unclippedEnd;
+	}
+
+	private static boolean isClip(int element)
+	{
+		int operator = PackedCigar.operator(element);
+		return operator == PackedCigar.softClip
+				|| operator == PackedCigar.hardClip;
+	}
+
+	@Override
+	public String getReferenceName()
+	{
+		return referenceNames[referenceIndex + 1];
+	}
+
+	@Override
+	public String getMateReferenceName()
+	{
+		return referenceNames[mateReferenceIndex + 1];
+	}
+
+	@Override
+	public String getReadName()
+	{
+		if (readName == null)
+		{
+			// without the terminating NUL
+			readName = StringUtil.bytesToString(data, fixedLength,
+					readNameLength - 1);
+		}
+
+		return readName;
+	}
+
+	@Override
+	public int getReadNameLength()
+	{
+		return readNameLength - 1;
+	}
+
+	@Override
+	public int getReadLength()
+	{
+		return readLength;
+	}
+
+	@Override
+	public byte[] getReadBases()
+	{
+		if (readLength == 0)
+		{
+			return NULL_SEQUENCE;
+		}
+
+		if (!readBasesDecoded)
+		{
+			if (readBases.length != readLength)
+			{
+				readBases = new byte[readLength];
+			}
+
+			// two bases per byte, the first one in the high 4 bits
+			for (int i = 0; i < readLength; i++)
+			{
+				int packed = data[basesOffset + i / 2];
+				int code = (i & 1) == 0 ? (packed >> 4) & 0xF : packed & 0xF;
+				readBases[i] = baseCodes[code];
+			}
+
+			readBasesDecoded = true;
+		}
+
+		return readBases;
+	}
+
+	@Override
+	public byte[] getBaseQualities()
+	{
+		// 0xFF means the qualities are missing
+		if (readLength == 0 || data[qualitiesOffset] == (byte) 0xFF)
+		{
+			return NULL_QUALS;
+		}
+
+		if (!baseQualitiesDecoded)
+		{
+			if (baseQualities.length != readLength)
+			{
+				baseQualities = new byte[readLength];
+			}
+
+			System.arraycopy(data, qualitiesOffset, baseQualities, 0,
+					readLength);
+			baseQualitiesDecoded = true;
+		}
+
+		return baseQualities;
+	}
+
+	@Override
+	public Object getAttribute(short tag)
+	{
+		decodeAttributes();
+		return super.getAttribute(tag);
+	}
+
+	@Override
+	protected SAMBinaryTagAndValue getBinaryAttributes()
+	{
+		decodeAttributes();
+		return super.getBinaryAttributes();
+	}
+
+	private void decodeAttributes()
+	{
+		if (attributesDecoded)
+		{
+			return;
+		}
+
+		attributesDecoded = true;
+		if (length > attributesOffset)
+		{
+			setAttributes(BinaryTagCodec.readTags(data, attributesOffset,
+					length - attributesOffset, getValidationStringency()));
+		}
+	}
+}
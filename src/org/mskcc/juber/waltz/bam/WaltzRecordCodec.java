@@ -0,0 +1,111 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.bam;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import htsjdk.samtools.SAMFormatException;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Decodes the BAM records of an uncompressed BAM stream into a
+ *         reusable WaltzRecord. Each record is copied from the stream, e.g.
+ *         straight from the inflated BGZF block, into the buffer of the record
+ *         and nothing else is allocated.
+ * 
+ */
+public class WaltzRecordCodec
+{
+	private InputStream in;
+	private byte[] blockSize = new byte[4];
+
+	/**
+	 * 
+	 * @param in
+	 *            positioned at the start of a record
+	 */
+	public WaltzRecordCodec(InputStream in)
+	{
+		this.in = in;
+	}
+
+	/**
+	 * decode the next record into the given record
+	 * 
+	 * @param record
+	 * @return false at the end of the stream
+	 * @throws IOException
+	 */
+	public boolean decode(WaltzRecord record) throws IOException
+	{
+		int read = readFully(blockSize, 4);
+		if (read == 0)
+		{
+			return false;
+		}
+
+		if (read < 4)
+		{
+			throw new SAMFormatException("Truncated BAM record block size");
+		}
+
+		int length = (blockSize[0] & 0xFF) | (blockSize[1] & 0xFF) << 8
+				| (blockSize[2] & 0xFF) << 16 | (blockSize[3] & 0xFF) << 24;
+		if (length < 32)
+		{
+			throw new SAMFormatException(
+					"Invalid BAM record block size: " + length);
+		}
+
+		if (readFully(record.buffer(length), length) < length)
+		{
+			throw new SAMFormatException("Truncated BAM record");
+		}
+
+		record.decode(length);
+		return true;
+	}
+
+	private int readFully(byte[] buffer, int length) throws IOException
+	{
+		int read = 0;
+		while (read < length)
+		{
+			int n = in.read(buffer, read, length - read);
+			if (n < 0)
+			{
+				break;
+			}
+
+			read += n;
+		}
+
+		return read;
+	}
+}
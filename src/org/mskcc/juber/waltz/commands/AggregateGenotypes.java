@@ -0,0 +1,381 @@
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.commands;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.mskcc.juber.waltz.Waltz;
+import org.mskcc.juber.waltz.pileup.processors.GenotypingProcessor;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Collects the -genotypes.maf files in a folder into one
+ *         genotypes.maf file, with Tumor_Sample_Barcode set to the sample
+ *         name, same as aggregate-genotypes.sh. The sample files are read and
+ *         parsed on multiple threads and written out in file name order.
+ * 
+ *         Also writes the Waltz counts as a variant x sample matrix in a
+ *         compact binary form, genotypes-matrix.bin, with the variants listed
+ *         in genotypes-matrix-variants.txt (index, chr, start, variant type,
+ *         ref, alt). The matrix file has a header: magic (int), version (int),
+ *         number of count columns (int) and their names (UTF). Then there is
+ *         one block per sample: sample name (UTF), number of variants n (int),
+ *         n variant indices (int) and then n values (int) for each count
+ *         column in turn. Counts that are not numbers are -1. All values are
+ *         big-endian.
+ * 
+ */
+public class AggregateGenotypes
+{
+	public static final int matrixMagic = 0x575A474D;
+	public static final int matrixVersion = 1;
+	private static final String[] countColumns = { "Waltz_total_t_depth",
+			"Waltz_total_t_alt_count", "Waltz_MD_t_depth",
+			"Waltz_MD_t_alt_count" };
+	private static final String[] variantColumns = { "Chromosome",
+			"Start_Position", "Variant_Type", "Reference_Allele",
+			"Tumor_Seq_Allele2" };
+	/**
+	 * number of sample files per thread that may be read ahead of the one
+	 * being written out
+	 */
+	private static final int filesInFlightPerThread = 2;
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		List<String> positionalArgs = new ArrayList<String>();
+		int threads = Waltz.readThreadsOption(args, positionalArgs);
+
+		File folder = new File(
+				positionalArgs.isEmpty() ? "." : positionalArgs.get(0));
+
+		long start = System.currentTimeMillis();
+
+		File[] files = folder.listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.endsWith("-genotypes.maf");
+			}
+		});
+
+		if (files == null || files.length == 0)
+		{
+			System.err.println("No -genotypes.maf files in " + folder);
+			System.exit(1);
+		}
+
+		Arrays.sort(files);
+		aggregate(files, folder, threads);
+
+		long time = System.currentTimeMillis() - start;
+		System.out.println("Aggregated " + files.length + " samples in "
+				+ (time * 1.0) / 1000 + " seconds");
+	}
+
+	private static void aggregate(File[] files, File folder, int threads)
+			throws IOException
+	{
+		// all the sample files must have the header of the first one
+		BufferedReader reader = new BufferedReader(new FileReader(files[0]));
+		final String header = reader.readLine();
+		reader.close();
+		final Map<String, Integer> mafColumns = GenotypingProcessor
+				.getMafColumns(header);
+
+		BufferedWriter mafWriter = new BufferedWriter(
+				new FileWriter(new File(folder, "genotypes.maf")));
+		mafWriter.write(header + "\n");
+		DataOutputStream matrixWriter = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(
+						new File(folder, "genotypes-matrix.bin"))));
+		matrixWriter.writeInt(matrixMagic);
+		matrixWriter.writeInt(matrixVersion);
+		matrixWriter.writeInt(countColumns.length);
+		for (String column : countColumns)
+		{
+			matrixWriter.writeUTF(column);
+		}
+
+		TObjectIntHashMap<String> variantIndices = new TObjectIntHashMap<String>();
+		List<String> variants = new ArrayList<String>();
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		int maxInFlight = threads * filesInFlightPerThread;
+		Deque<Future<SampleGenotypes>> inFlight = new ArrayDeque<Future<SampleGenotypes>>();
+
+		try
+		{
+			for (final File file : files)
+			{
+				// wait for the oldest file before going too far ahead
+				if (inFlight.size() == maxInFlight)
+				{
+					writeOut(inFlight.poll(), mafWriter, matrixWriter,
+							variantIndices, variants);
+				}
+
+				inFlight.add(executor.submit(new Callable<SampleGenotypes>()
+				{
+					@Override
+					public SampleGenotypes call() throws Exception
+					{
+						return readSample(file, header, mafColumns);
+					}
+				}));
+			}
+
+			while (!inFlight.isEmpty())
+			{
+				writeOut(inFlight.poll(), mafWriter, matrixWriter,
+						variantIndices, variants);
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+			mafWriter.close();
+			matrixWriter.close();
+		}
+
+		BufferedWriter variantsWriter = new BufferedWriter(new FileWriter(
+				new File(folder, "genotypes-matrix-variants.txt")));
+		for (int i = 0; i < variants.size(); i++)
+		{
+			variantsWriter.write(i + "\t" + variants.get(i) + "\n");
+		}
+
+		variantsWriter.close();
+	}
+
+	private static void writeOut(Future<SampleGenotypes> future,
+			BufferedWriter mafWriter, DataOutputStream matrixWriter,
+			TObjectIntHashMap<String> variantIndices, List<String> variants)
+			throws IOException
+	{
+		SampleGenotypes sample = null;
+		try
+		{
+			sample = future.get();
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException(e.getCause());
+		}
+
+		mafWriter.write(sample.mafLines.toString());
+
+		// variants get their indices in the order they are first seen
+		int n = sample.variants.size();
+		matrixWriter.writeUTF(sample.name);
+		matrixWriter.writeInt(n);
+		for (String variant : sample.variants)
+		{
+			if (!variantIndices.containsKey(variant))
+			{
+				variantIndices.put(variant, variants.size());
+				variants.add(variant);
+			}
+
+			matrixWriter.writeInt(variantIndices.get(variant));
+		}
+
+		for (int column = 0; column < countColumns.length; column++)
+		{
+			for (int i = 0; i < n; i++)
+			{
+				matrixWriter.writeInt(sample.counts[column][i]);
+			}
+		}
+	}
+
+	/**
+	 * read one sample file, setting the sample name in each line and
+	 * collecting the variants and their counts
+	 * 
+	 * @param file
+	 * @param header
+	 * @param mafColumns
+	 * @return
+	 * @throws IOException
+	 */
+	private static SampleGenotypes readSample(File file, String header,
+			Map<String, Integer> mafColumns) throws IOException
+	{
+		SampleGenotypes sample = new SampleGenotypes(getSampleName(file));
+		int sampleColumn = columnIndices(mafColumns,
+				new String[] { "Tumor_Sample_Barcode" })[0];
+		int[] variantColumnIndices = columnIndices(mafColumns, variantColumns);
+		int[] countColumnIndices = columnIndices(mafColumns, countColumns);
+		List<int[]> counts = new ArrayList<int[]>();
+
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		String line = reader.readLine();
+		if (!header.equals(line))
+		{
+			reader.close();
+			throw new IOException(
+					"Columns of " + file + " differ from the other files");
+		}
+
+		while ((line = reader.readLine()) != null)
+		{
+			String[] parts = line.split("\t", -1);
+			if (parts.length < mafColumns.size())
+			{
+				parts = Arrays.copyOf(parts, mafColumns.size());
+			}
+
+			parts[sampleColumn] = sample.name;
+			StringBuilder variant = new StringBuilder();
+			for (int i = 0; i < parts.length; i++)
+			{
+				if (parts[i] == null)
+				{
+					parts[i] = "";
+				}
+
+				if (i != 0)
+				{
+					sample.mafLines.append('\t');
+				}
+
+				sample.mafLines.append(parts[i]);
+			}
+
+			sample.mafLines.append('\n');
+
+			for (int i = 0; i < variantColumnIndices.length; i++)
+			{
+				if (i != 0)
+				{
+					variant.append('\t');
+				}
+
+				variant.append(parts[variantColumnIndices[i]]);
+			}
+
+			int[] lineCounts = new int[countColumnIndices.length];
+			for (int i = 0; i < lineCounts.length; i++)
+			{
+				lineCounts[i] = parseCount(parts[countColumnIndices[i]]);
+			}
+
+			sample.variants.add(variant.toString());
+			counts.add(lineCounts);
+		}
+
+		reader.close();
+
+		// counts by column
+		sample.counts = new int[countColumns.length][counts.size()];
+		for (int i = 0; i < counts.size(); i++)
+		{
+			int[] lineCounts = counts.get(i);
+			for (int column = 0; column < lineCounts.length; column++)
+			{
+				sample.counts[column][i] = lineCounts[column];
+			}
+		}
+
+		return sample;
+	}
+
+	/**
+	 * same rule as aggregate-genotypes.sh: the file name up to the first _,
+	 * or up to -genotypes.maf if there is no _
+	 * 
+	 * @param file
+	 * @return
+	 */
+	private static String getSampleName(File file)
+	{
+		String name = file.getName();
+		int index = name.indexOf('_');
+		if (index == -1)
+		{
+			index = name.indexOf("-genotypes.maf");
+		}
+
+		return name.substring(0, index);
+	}
+
+	private static int[] columnIndices(Map<String, Integer> mafColumns,
+			String[] columns) throws IOException
+	{
+		int[] indices = new int[columns.length];
+		for (int i = 0; i < columns.length; i++)
+		{
+			Integer index = mafColumns.get(columns[i]);
+			if (index == null)
+			{
+				throw new IOException("Missing maf column: " + columns[i]);
+			}
+
+			indices[i] = index;
+		}
+
+		return indices;
+	}
+
+	private static int parseCount(String value)
+	{
+		try
+		{
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * the genotypes of one sample file
+	 */
+	private static class SampleGenotypes
+	{
+		private final String name;
+		private StringBuilder mafLines = new StringBuilder();
+		private List<String> variants = new ArrayList<String>();
+		private int[][] counts;
+
+		private SampleGenotypes(String name)
+		{
+			this.name = name;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.commands;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Calculates the substitution rate ("noise") for all the -pileup.txt
+ *         and -pileup-without-duplicates.txt files in the current folder, same
+ *         as calculate-noise.sh, in one pass over each file. Writes noise.txt
+ *         and noise-by-substitution.txt. BGZF-compressed pileups
+ *         (-pileup.txt.gz) are read too.
+ * 
+ *         Optional argument: a file of good positions that should be used
+ *         exclusively for noise calculation. Each line has chromosome and
+ *         position separated by tab.
+ * 
+ */
+public class CalculateNoise
+{
+	public static final double cutOffAF = 0.02;
+
+	/**
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		Set<String> goodPositions = new HashSet<String>();
+		if (args.length > 0)
+		{
+			BufferedReader reader = new BufferedReader(
+					new FileReader(args[0]));
+			String line = null;
+			while ((line = reader.readLine()) != null)
+			{
+				goodPositions.add(line);
+			}
+
+			reader.close();
+		}
+
+		File folder = new File(".");
+		File[] files = folder.listFiles(new FilenameFilter()
+		{
+			@Override
+			public boolean accept(File dir, String name)
+			{
+				return name.endsWith("-pileup.txt")
+						|| name.endsWith("-pileup.txt.gz");
+			}
+		});
+
+		Arrays.sort(files);
+
+		BufferedWriter noiseWriter = new BufferedWriter(
+				new FileWriter("noise.txt"));
+		BufferedWriter substitutionWriter = new BufferedWriter(
+				new FileWriter("noise-by-substitution.txt"));
+		noiseWriter.write("Sample\tGenotypeCount\tAltCount\tAltPercent"
+				+ "\tContributingSites\tMethod\n");
+		substitutionWriter.write("Sample\tSubstitution\tGenotypeCount"
+				+ "\tAltCount\tAltPercent\tContributingSites\tMethod\n");
+
+		for (File file : files)
+		{
+			String name = file.getName();
+			// same as ${sampleName/-IGO*/}
+			String sampleName = name;
+			int index = sampleName.indexOf("-IGO");
+			if (index != -1)
+			{
+				sampleName = sampleName.substring(0, index);
+			}
+
+			File withoutDuplicates = new File(folder, name.replace(
+					"-pileup.txt", "-pileup-without-duplicates.txt"));
+
+			NoiseAccumulator total = accumulate(file, goodPositions);
+			noiseWriter.write(total.getNoiseLine(sampleName, "Total"));
+			substitutionWriter
+					.write(total.getSubstitutionLines(sampleName, "Total"));
+
+			NoiseAccumulator unique = accumulate(withoutDuplicates,
+					goodPositions);
+			noiseWriter.write(unique.getNoiseLine(sampleName, "Unique"));
+			substitutionWriter
+					.write(unique.getSubstitutionLines(sampleName, "Unique"));
+		}
+
+		noiseWriter.close();
+		substitutionWriter.close();
+	}
+
+	private static NoiseAccumulator accumulate(File pileupFile,
+			Set<String> goodPositions) throws IOException
+	{
+		NoiseAccumulator accumulator = new NoiseAccumulator(cutOffAF);
+		InputStream in = new FileInputStream(pileupFile);
+		if (pileupFile.getName().endsWith(".gz"))
+		{
+			in = new BlockCompressedInputStream(in);
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in),
+				1 << 16);
+		int[] counts = new int[4];
+		String line = null;
+		while ((line = reader.readLine()) != null)
+		{
+			// columns: chr, position, ref, depth, A, C, G, T, ...
+			int tab = line.indexOf('\t');
+			tab = line.indexOf('\t', tab + 1);
+			if (!goodPositions.isEmpty()
+					&& !goodPositions.contains(line.substring(0, tab)))
+			{
+				continue;
+			}
+
+			// skip ref and depth
+			tab = line.indexOf('\t', tab + 1);
+			tab = line.indexOf('\t', tab + 1);
+			for (int i = 0; i < 4; i++)
+			{
+				int value = 0;
+				int j = tab + 1;
+				for (; j < line.length(); j++)
+				{
+					char c = line.charAt(j);
+					if (c == '\t')
+					{
+						break;
+					}
+
+					value = value * 10 + (c - '0');
+				}
+
+				counts[i] = value;
+				tab = j;
+			}
+
+			accumulator.add(counts);
+		}
+
+		reader.close();
+		return accumulator;
+	}
+}
@@ -7,13 +7,12 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 
+import org.mskcc.juber.waltz.bam.ParallelBamReader;
+
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileWriter;
 import htsjdk.samtools.SAMFileWriterFactory;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecordIterator;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
 
 /**
  * @author Juber Patel
@@ -39,10 +38,9 @@ public class ChangeBamBaseQualities
 		File outBam = new File(
 				"bamFiles/MSK-L-017-cf-bq" + baseQuality + ".bam");
 
-		SamReaderFactory factory = SamReaderFactory.makeDefault();
-		SamReader reader = factory.open(inBam);
-		SAMFileHeader header = reader.getFileHeader();
-		SAMRecordIterator iterator = reader.iterator();
+		ParallelBamReader iterator = new ParallelBamReader(inBam,
+				Runtime.getRuntime().availableProcessors());
+		SAMFileHeader header = iterator.getFileHeader();
 
 		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header,
 				true, outBam);
@@ -97,7 +95,6 @@ public class ChangeBamBaseQualities
 
 		writer.close();
 		iterator.close();
-		reader.close();
 
 	}
 
@@ -6,10 +6,9 @@ package org.mskcc.juber.waltz.commands;
 import java.io.File;
 import java.io.IOException;
 
+import org.mskcc.juber.waltz.bam.ParallelBamReader;
+
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecordIterator;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
 
 /**
  * @author Juber Patel
@@ -30,9 +29,8 @@ public class FindSecondarySupplementaryAlignments
 		File inBam = new File(
 				"bamFiles/marianas-collapsed/MSK-L-017-cf-IGO-05500-DY-18_bc209_5500-DY-4_L000_mrg_cl_aln_srt_MD_IR_FX_BR.bam");
 
-		SamReaderFactory factory = SamReaderFactory.makeDefault();
-		SamReader reader = factory.open(inBam);
-		SAMRecordIterator iterator = reader.iterator();
+		ParallelBamReader iterator = new ParallelBamReader(inBam,
+				Runtime.getRuntime().availableProcessors());
 
 		long totalMapped = 0;
 		long notPrimary = 0;
@@ -61,7 +59,6 @@ public class FindSecondarySupplementaryAlignments
 		}
 
 		iterator.close();
-		reader.close();
 
 		System.out.println("Mapped: " + totalMapped);
 		System.out.println("Not Primary: " + notPrimary + " ("
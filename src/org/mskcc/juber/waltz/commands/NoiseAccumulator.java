@@ -0,0 +1,208 @@
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.commands;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Accumulates the substitution rate ("noise") over pileup positions,
+ *         with the same rules as calculate-noise.sh. The genotype of a
+ *         position is its most frequent base (the first one on a tie). A
+ *         position is used only if every other base is below cutOffAF of the
+ *         A+C+G+T depth, so positions with real variants, and positions with
+ *         no depth, are left out.
+ * 
+ */
+public class NoiseAccumulator
+{
+	private static final char[] bases = { 'A', 'C', 'G', 'T' };
+
+	private final double cutOffAF;
+	private long genotypeCount;
+	private long altCount;
+	private long contributingSites;
+	/**
+	 * by genotype base and alt base
+	 */
+	private long[][] substitutionGenotypeCounts = new long[4][4];
+	private long[][] substitutionAltCounts = new long[4][4];
+	private long[][] substitutionContributingSites = new long[4][4];
+	private boolean[] genotypeSeen = new boolean[4];
+
+	public NoiseAccumulator(double cutOffAF)
+	{
+		this.cutOffAF = cutOffAF;
+	}
+
+	/**
+	 * add a position
+	 * 
+	 * @param counts
+	 *            A, C, G and T counts
+	 * @return true if the position was used
+	 */
+	public boolean add(int[] counts)
+	{
+		long total = 0;
+		int genotype = 0;
+		for (int i = 0; i < 4; i++)
+		{
+			total += counts[i];
+			if (counts[i] > counts[genotype])
+			{
+				genotype = i;
+			}
+		}
+
+		for (int i = 0; i < 4; i++)
+		{
+			if (i != genotype && counts[i] >= total * cutOffAF)
+			{
+				return false;
+			}
+		}
+
+		int max = counts[genotype];
+		genotypeCount += max;
+		altCount += total - max;
+		if (total - max > 0)
+		{
+			contributingSites++;
+		}
+
+		genotypeSeen[genotype] = true;
+		for (int i = 0; i < 4; i++)
+		{
+			if (i == genotype)
+			{
+				continue;
+			}
+
+			substitutionGenotypeCounts[genotype][i] += max;
+			substitutionAltCounts[genotype][i] += counts[i];
+			if (counts[i] > 0)
+			{
+				substitutionContributingSites[genotype][i]++;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * 
+	 * @param sample
+	 * @param method
+	 * @return the noise.txt line: sample, genotype count, alt count, alt
+	 *         percent, contributing sites, method
+	 */
+	public String getNoiseLine(String sample, String method)
+	{
+		return sample + "\t" + genotypeCount + "\t" + altCount + "\t"
+				+ altPercent(genotypeCount, altCount) + "\t"
+				+ contributingSites + "\t" + method + "\n";
+	}
+
+	/**
+	 * 
+	 * @param sample
+	 * @param method
+	 * @return the noise-by-substitution.txt lines, one for each substitution
+	 *         from a genotype base that was seen: sample, substitution,
+	 *         genotype count, alt count, alt percent, contributing sites,
+	 *         method
+	 */
+	public String getSubstitutionLines(String sample, String method)
+	{
+		StringBuilder lines = new StringBuilder();
+		for (int genotype = 0; genotype < 4; genotype++)
+		{
+			if (!genotypeSeen[genotype])
+			{
+				continue;
+			}
+
+			for (int alt = 0; alt < 4; alt++)
+			{
+				if (alt == genotype)
+				{
+					continue;
+				}
+
+				long g = substitutionGenotypeCounts[genotype][alt];
+				long a = substitutionAltCounts[genotype][alt];
+				lines.append(sample).append('\t').append(bases[genotype])
+						.append('>').append(bases[alt]).append('\t').append(g)
+						.append('\t').append(a).append('\t')
+						.append(altPercent(g, a)).append('\t')
+						.append(substitutionContributingSites[genotype][alt])
+						.append('\t').append(method).append('\n');
+			}
+		}
+
+		return lines.toString();
+	}
+
+	private static String altPercent(long genotypeCount, long altCount)
+	{
+		if (genotypeCount + altCount == 0)
+		{
+			return "0";
+		}
+
+		return formatNumber((100.0 * altCount) / (genotypeCount + altCount));
+	}
+
+	/**
+	 * format a number the way awk prints it: integral values as integers,
+	 * others with %.6g as in C
+	 * 
+	 * @param value
+	 * @return
+	 */
+	static String formatNumber(double value)
+	{
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+		{
+			return Long.toString((long) value);
+		}
+
+		BigDecimal rounded = new BigDecimal(value)
+				.round(new MathContext(6, RoundingMode.HALF_EVEN));
+		int exponent = rounded.precision() - rounded.scale() - 1;
+		if (exponent >= -4 && exponent < 6)
+		{
+			return rounded.stripTrailingZeros().toPlainString();
+		}
+
+		// scientific notation, without trailing zeros
+		String digits = rounded.stripTrailingZeros().unscaledValue().abs()
+				.toString();
+		StringBuilder s = new StringBuilder();
+		if (rounded.signum() < 0)
+		{
+			s.append('-');
+		}
+
+		s.append(digits.charAt(0));
+		if (digits.length() > 1)
+		{
+			s.append('.').append(digits, 1, digits.length());
+		}
+
+		s.append(exponent < 0 ? "e-" : "e+");
+		int absExponent = Math.abs(exponent);
+		if (absExponent < 10)
+		{
+			s.append('0');
+		}
+
+		s.append(absExponent);
+		return s.toString();
+	}
+}
@@ -5,15 +5,24 @@ package org.mskcc.juber.waltz.countreads;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.mskcc.juber.intervals.IntervalNameMap;
 import org.mskcc.juber.util.CustomCaptureException;
 import org.mskcc.juber.util.Util;
+import org.mskcc.juber.waltz.Waltz;
+import org.mskcc.juber.waltz.bam.ParallelBamReader;
+import org.mskcc.juber.waltz.bam.WaltzBamReader;
 
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.util.Interval;
@@ -32,6 +41,12 @@ public class CountReads
 	public static void main(String[] args)
 			throws IOException, CustomCaptureException
 	{
+		// leave the positional arguments in args
+		List<String> positionalArgs = new ArrayList<String>();
+		int threads = Waltz.readThreadsOption(args, positionalArgs);
+
+		args = positionalArgs.toArray(new String[positionalArgs.size()]);
+
 		File bamFile = new File(args[0]);
 		int coverageThreshold = Integer.parseInt(args[1]);
 		File transcriptsFile = new File(args[2]);
@@ -59,12 +74,20 @@ public class CountReads
 
 		// load intervals
 		List<Interval> intervals = Util.loadIntervals(intervalsFile);
-		IntervalNameMap intervalNameMap = toIntervalNameMap(intervals);
+		TargetIndex targetIndex = toTargetIndex(intervals);
 
-		// go through the bam file serially, collect general stats that do not
+		// go through the bam file, collect general stats that do not
 		// depend on bed files
 		// also find regions with average coverage >= coverageThreshould
-		scanBam(readCounts, coveredRegions, bamFile, intervalNameMap);
+		if (threads > 1)
+		{
+			scanBamInParallel(readCounts, coveredRegions, bamFile, intervals,
+					threads);
+		}
+		else
+		{
+			scanBam(readCounts, coveredRegions, bamFile, targetIndex, 1);
+		}
 
 		// go through the intervals in the given bed file and collect numbers
 		// processBamAtIntervals(readCounts, bamFile, intervals);
@@ -77,79 +100,173 @@ public class CountReads
 				+ " seconds.");
 	}
 
+	/**
+	 * scan the bam file in one pass. With more than one thread, the bgzf
+	 * blocks are inflated on that many threads. The records are decoded into
+	 * one reusable WaltzRecord.
+	 * 
+	 * @param readCounts
+	 * @param coveredRegions
+	 * @param bamFile
+	 * @param targetIndex
+	 * @param threads
+	 * @throws IOException
+	 */
 	private static void scanBam(ReadCounts readCounts,
 			CoveredRegions coveredRegions, File bamFile,
-			IntervalNameMap intervalNameMap) throws IOException
+			TargetIndex targetIndex, int threads) throws IOException
 	{
 		System.out.println("Scanning entire " + bamFile.getName());
 
+		if (threads > 1)
+		{
+			ParallelBamReader iterator = new ParallelBamReader(bamFile,
+					threads, true);
+			countRecords(iterator, readCounts, coveredRegions, targetIndex);
+			iterator.close();
+			return;
+		}
+
 		SamReaderFactory factory = SamReaderFactory.makeDefault();
 		SamReader reader = factory.open(bamFile);
-		SAMRecordIterator iterator = reader.iterator();
+		WaltzBamReader bamReader = new WaltzBamReader(bamFile, reader);
+		SAMRecordIterator iterator = bamReader.iterator();
 		// SAMRecordIterator iterator = reader.query("11", 60000, 76000, false);
 
-		while (iterator.hasNext())
+		countRecords(iterator, readCounts, coveredRegions, targetIndex);
+
+		iterator.close();
+		bamReader.close();
+		reader.close();
+	}
+
+	/**
+	 * scan the bam file on the given number of threads, one contig at a time
+	 * per thread, using the bam index. Each contig is counted into its own
+	 * ReadCounts and CoveredRegions which are then merged in contig order.
+	 * Covered regions don't span contigs, so the merged regions are the same
+	 * as from a serial scan. Without an index, falls back to a single pass
+	 * with the bgzf blocks inflated on the given number of threads.
+	 * 
+	 * @param readCounts
+	 * @param coveredRegions
+	 * @param bamFile
+	 * @param intervals
+	 * @param threads
+	 * @throws IOException
+	 */
+	private static void scanBamInParallel(ReadCounts readCounts,
+			CoveredRegions coveredRegions, final File bamFile,
+			final List<Interval> intervals, int threads) throws IOException
+	{
+		SamReaderFactory factory = SamReaderFactory.makeDefault();
+		SamReader reader = factory.open(bamFile);
+		boolean hasIndex = reader.hasIndex();
+		List<SAMSequenceRecord> contigs = reader.getFileHeader()
+				.getSequenceDictionary().getSequences();
+		reader.close();
+
+		if (!hasIndex)
 		{
-			SAMRecord record = iterator.next();
-			
-			try
-			{
-				readCounts.totalReads++;
-				
-				if (record.getReadUnmappedFlag())
-				// not applying quality filter for the time being
-				// || record.getMappingQuality() < Constants.minMappingQuality)
-				{
-					readCounts.unmappedReads++;
-					continue;
-				}
+			System.out.println("No index for " + bamFile.getName()
+					+ ", scanning in one pass");
+			scanBam(readCounts, coveredRegions, bamFile,
+					toTargetIndex(intervals), threads);
+			return;
+		}
 
-				readCounts.totalMappedReads++;
+		System.out.println("Scanning entire " + bamFile.getName() + " on "
+				+ threads + " threads");
 
-				// check if on target
-				List<String> intersecting = intervalNameMap.getIntersecting(
-						record.getContig(), record.getAlignmentStart(),
-						record.getAlignmentEnd());
+		final String bamFileName = readCounts.bamFileName;
+		final String sampleID = readCounts.sampleID;
+		final String targetLabel = readCounts.targetLabel;
+		final int coverageThreshold = coveredRegions.getCoverageThreshold();
 
-				if (!intersecting.isEmpty())
-				{
-					readCounts.totalTargetReads++;
-				}
+		// one task per contig and one for the unmapped reads at the end
+		List<String> partitions = new ArrayList<String>();
+		for (SAMSequenceRecord contig : contigs)
+		{
+			partitions.add(contig.getSequenceName());
+		}
 
-				if (record.getDuplicateReadFlag())
-				{
-					readCounts.duplicateMappedReads++;
+		partitions.add(null);
 
-				}
-				else
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<ScanResult>> futures = new ArrayList<Future<ScanResult>>();
+		for (final String contig : partitions)
+		{
+			futures.add(executor.submit(new Callable<ScanResult>()
+			{
+				@Override
+				public ScanResult call() throws Exception
 				{
-					readCounts.uniqueMappedReads++;
-
-					if (!intersecting.isEmpty())
+					ScanResult result = new ScanResult();
+					result.readCounts = new ReadCounts(bamFileName, sampleID,
+							targetLabel);
+					result.coveredRegions = new CoveredRegions(bamFileName,
+							coverageThreshold);
+					SamReader reader = SamReaderFactory.makeDefault()
+							.open(bamFile);
+					WaltzBamReader bamReader = new WaltzBamReader(bamFile,
+							reader);
+					SAMRecordIterator iterator = null;
+					if (contig == null)
+					{
+						iterator = reader.queryUnmapped();
+					}
+					else
 					{
-						readCounts.uniqueTargetReads++;
+						iterator = bamReader.queryOverlapping(contig, 0, 0);
 					}
 
-					// not a duplicate read, count towards covered regions
-					coveredRegions.recordAlignment(record);
-				}
+					countRecords(iterator, result.readCounts,
+							result.coveredRegions, toTargetIndex(intervals));
+					iterator.close();
+					bamReader.close();
+					reader.close();
 
-				// add fragment size
-				// only on-target, first read, non-zero, positive value, capped
-				// at a value
-				int maxInsertSize = 600;
-				int fragmentSize = record.getInferredInsertSize();
-				if (intersecting.isEmpty() || fragmentSize <= 0
-						|| fragmentSize > maxInsertSize)
-				{
-					continue;
+					return result;
 				}
+			}));
+		}
 
-				readCounts.addTotalFragmentSize(fragmentSize);
-				if (!record.getDuplicateReadFlag())
-				{
-					readCounts.addUniqueFragmentSize(fragmentSize);
-				}
+		executor.shutdown();
+
+		try
+		{
+			for (Future<ScanResult> future : futures)
+			{
+				ScanResult result = future.get();
+				readCounts.add(result.readCounts);
+				coveredRegions.add(result.coveredRegions);
+			}
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException(e.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	private static void countRecords(SAMRecordIterator iterator,
+			ReadCounts readCounts, CoveredRegions coveredRegions,
+			TargetIndex targetIndex)
+	{
+		while (iterator.hasNext())
+		{
+			SAMRecord record = iterator.next();
+
+			try
+			{
+				countRecord(record, readCounts, coveredRegions, targetIndex);
 			}
 			catch (Exception e)
 			{
@@ -159,34 +276,80 @@ public class CountReads
 				continue;
 			}
 		}
-
-		iterator.close();
-		reader.close();
 	}
 
-	private static IntervalNameMap toIntervalNameMap(List<Interval> intervals)
+	static void countRecord(SAMRecord record, ReadCounts readCounts,
+			CoveredRegions coveredRegions, TargetIndex targetIndex)
 	{
-		// build the interval name map
-		IntervalNameMap intervalNameMap = new IntervalNameMap();
-
-		for (Interval interval : intervals)
-		{
-			// shorten the interval so that we only count on target read when
-			// there is minReadOverlap
-			int minReadOverlap = 10;
-			int start = interval.getStart() + minReadOverlap;
-			int end = interval.getEnd() - minReadOverlap;
-			// interval is too short for further shortening
-			if (start > end)
+		readCounts.totalReads++;
+
+		if (record.getReadUnmappedFlag())
+		// not applying quality filter for the time being
+		// || record.getMappingQuality() < Constants.minMappingQuality)
+		{
+			readCounts.unmappedReads++;
+			return;
+		}
+
+		readCounts.totalMappedReads++;
+
+		// check if on target
+		boolean onTarget = targetIndex.isOnTarget(record.getContig(),
+				record.getAlignmentStart(), record.getAlignmentEnd());
+
+		if (onTarget)
+		{
+			readCounts.totalTargetReads++;
+		}
+
+		if (record.getDuplicateReadFlag())
+		{
+			readCounts.duplicateMappedReads++;
+
+		}
+		else
+		{
+			readCounts.uniqueMappedReads++;
+
+			if (onTarget)
 			{
-				start = end = (interval.getStart() + interval.getEnd()) / 2;
+				readCounts.uniqueTargetReads++;
 			}
 
-			intervalNameMap.add(interval.getContig(), start, end,
-					interval.getName());
+			// not a duplicate read, count towards covered regions
+			coveredRegions.recordAlignment(record);
+		}
+
+		// add fragment size
+		// only on-target, first read, non-zero, positive value. Sizes above
+		// ReadCounts.maxFragmentSize go to the overflow bucket
+		int fragmentSize = record.getInferredInsertSize();
+		if (!onTarget || fragmentSize <= 0)
+		{
+			return;
+		}
 
+		readCounts.addTotalFragmentSize(fragmentSize);
+		if (!record.getDuplicateReadFlag())
+		{
+			readCounts.addUniqueFragmentSize(fragmentSize);
 		}
+	}
 
-		return intervalNameMap;
+	/**
+	 * counts from a part of the bam file
+	 */
+	private static class ScanResult
+	{
+		ReadCounts readCounts;
+		CoveredRegions coveredRegions;
+	}
+
+	static TargetIndex toTargetIndex(List<Interval> intervals)
+	{
+		// shorten the intervals so that we only count on target read when
+		// there is minReadOverlap
+		int minReadOverlap = 10;
+		return new TargetIndex(intervals, minReadOverlap);
 	}
 }
@@ -9,12 +9,14 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.mskcc.juber.intervals.IntervalNameMap;
-import org.mskcc.juber.waltz.Constants;
+import org.mskcc.juber.waltz.bam.PackedCigar;
 
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.util.Interval;
@@ -23,25 +25,65 @@ import htsjdk.samtools.util.Interval;
  * @author Juber Patel
  * 
  *         List of regions that have average coverage >= coverage threshold
+ * 
+ *         The per-base depth is computed from the alignment blocks of the
+ *         records as they come in coordinate order. Depth changes are kept in
+ *         a circular difference array that only spans the positions between
+ *         the start of the current record and the furthest end seen so far,
+ *         so memory does not depend on the genome size. Positions behind the
+ *         current record are final and are folded into the current region: a
+ *         run of positions with non-zero depth.
  *
  */
 public class CoveredRegions
 {
+	private static final int initialWindowSize = 1 << 16;
+
 	private String bamFileName;
 	private IntervalNameMap exonMap;
 	private int coverageThreshold;
-	private Map<Interval, Integer> intervals;
+	private Map<Interval, RegionDepth> intervals;
 	private String contig;
-	private int start;
-	private int end;
-	private int reads;
+
+	/**
+	 * depth changes by position, for positions from done to maxEnd
+	 */
+	private int[] depthChanges = new int[initialWindowSize];
+	private int mask = initialWindowSize - 1;
+	/**
+	 * positions before this are final
+	 */
+	private int done;
+	/**
+	 * depth at position done - 1
+	 */
+	private int depth;
+	/**
+	 * the last position with a depth change
+	 */
+	private int maxEnd;
+
+	/**
+	 * the current region, -1 if there is none
+	 */
+	private int regionStart = -1;
+	private long regionDepthSum;
+	private int regionMaxDepth;
+	/**
+	 * number of positions in the current region by depth
+	 */
+	private int[] regionDepthFrequencies = new int[1024];
+	/**
+	 * CIGAR of the current record
+	 */
+	private PackedCigar cigar = new PackedCigar();
 
 	public CoveredRegions(String bamFileName, int coverageThreshold,
 			File geneListFile) throws NumberFormatException, IOException
 	{
 		this.bamFileName = bamFileName;
 		this.coverageThreshold = coverageThreshold;
-		this.intervals = new LinkedHashMap<Interval, Integer>();
+		this.intervals = new LinkedHashMap<Interval, RegionDepth>();
 
 		// build the gene map
 		this.exonMap = new IntervalNameMap();
@@ -59,57 +101,226 @@ public class CoveredRegions
 		reader.close();
 	}
 
+	/**
+	 * make a CoveredRegions without the exon map, to collect the regions of
+	 * a part of the bam file that will be added to a full CoveredRegions
+	 * 
+	 * @param bamFileName
+	 * @param coverageThreshold
+	 */
+	CoveredRegions(String bamFileName, int coverageThreshold)
+	{
+		this.bamFileName = bamFileName;
+		this.coverageThreshold = coverageThreshold;
+		this.intervals = new LinkedHashMap<Interval, RegionDepth>();
+	}
+
+	public int getCoverageThreshold()
+	{
+		return coverageThreshold;
+	}
+
+	/**
+	 * add the regions of the given CoveredRegions, which must come after all
+	 * the regions of this one in the bam file and must not share a region
+	 * with it, e.g. regions from the next contig
+	 * 
+	 * @param other
+	 */
+	public void add(CoveredRegions other)
+	{
+		// finish the last regions
+		recordAlignment(null);
+		other.recordAlignment(null);
+		contig = null;
+
+		intervals.putAll(other.intervals);
+	}
+
+	/**
+	 * add the coverage of the given record. Records must come in coordinate
+	 * order. null signals the end of the records.
+	 * 
+	 * @param record
+	 */
 	public void recordAlignment(SAMRecord record)
 	{
-		// very first record
+		// end signal or new contig, finish the current contig
+		if (contig != null
+				&& (record == null || !record.getContig().equals(contig)))
+		{
+			advanceTo(maxEnd + 1);
+			contig = null;
+		}
+
+		if (record == null)
+		{
+			return;
+		}
+
+		int recordStart = record.getAlignmentStart();
 		if (contig == null)
 		{
-			// not a single record was processed and we received end signal;
-			// return
-			if (record == null)
+			contig = record.getContig();
+			done = recordStart;
+			maxEnd = recordStart;
+			depth = 0;
+		}
+		else if (recordStart < done)
+		{
+			throw new IllegalArgumentException(
+					"Records are not in coordinate order");
+		}
+
+		// positions before this record are final
+		advanceTo(recordStart);
+
+		// the alignment blocks are the elements that consume both the read
+		// and the reference
+		cigar.load(record);
+		int referencePosition = recordStart;
+		for (int i = 0; i < cigar.size(); i++)
+		{
+			int element = cigar.get(i);
+			int length = PackedCigar.length(element);
+			int operator = PackedCigar.operator(element);
+			if (operator == PackedCigar.deletion
+					|| operator == PackedCigar.skippedRegion)
 			{
-				return;
+				referencePosition += length;
+				continue;
+			}
+			else if (operator != PackedCigar.matchOrMismatch
+					&& operator != PackedCigar.sequenceMatch
+					&& operator != PackedCigar.sequenceMismatch)
+			{
+				continue;
 			}
 
-			contig = record.getContig();
-			start = record.getStart();
-			end = record.getEnd();
-			reads = 1;
+			int blockStart = referencePosition;
+			int blockEnd = blockStart + length;
+			referencePosition = blockEnd;
+			if (blockEnd - done >= depthChanges.length)
+			{
+				growWindow(blockEnd - done + 1);
+			}
+
+			depthChanges[blockStart & mask]++;
+			depthChanges[blockEnd & mask]--;
+			if (blockEnd > maxEnd)
+			{
+				maxEnd = blockEnd;
+			}
 		}
+	}
 
-		// there is a gap between current and previous record
-		// so record previous region, start a new region
-		else if (record == null || !record.getContig().equals(contig)
-				|| end < record.getStart())
+	/**
+	 * finalize the depth of the positions up to the given position, exclusive
+	 * 
+	 * @param position
+	 */
+	private void advanceTo(int position)
+	{
+		// there are no depth changes after maxEnd
+		int last = Math.min(position, maxEnd + 1);
+		for (; done < last; done++)
 		{
-			int coverage = (reads * Constants.readLength) / (end - start + 1);
+			int index = done & mask;
+			depth += depthChanges[index];
+			depthChanges[index] = 0;
 
-			if (coverage >= coverageThreshold)
+			if (depth > 0)
 			{
-				Interval interval = new Interval(contig, start, end);
-				intervals.put(interval, coverage);
+				addToRegion(depth);
 			}
-
-			// last region, end signal
-			if (record == null)
+			else if (regionStart != -1)
 			{
-				return;
+				endRegion(done - 1);
 			}
+		}
 
-			contig = record.getContig();
-			start = record.getStart();
-			end = record.getEnd();
-			reads = 1;
+		if (done < position)
+		{
+			done = position;
+		}
+	}
+
+	private void addToRegion(int depth)
+	{
+		if (regionStart == -1)
+		{
+			regionStart = done;
+			regionDepthSum = 0;
+			regionMaxDepth = 0;
+		}
+
+		regionDepthSum += depth;
+		if (depth > regionMaxDepth)
+		{
+			regionMaxDepth = depth;
+		}
+
+		if (depth >= regionDepthFrequencies.length)
+		{
+			regionDepthFrequencies = Arrays.copyOf(regionDepthFrequencies,
+					Math.max(depth + 1, regionDepthFrequencies.length * 2));
 		}
-		else
+
+		regionDepthFrequencies[depth]++;
+	}
+
+	private void endRegion(int regionEnd)
+	{
+		int length = regionEnd - regionStart + 1;
+		double meanDepth = (regionDepthSum * 1.0) / length;
+
+		// median from the depth frequencies, clearing them on the way
+		int median = 0;
+		int positions = 0;
+		int medianRank = (length + 1) / 2;
+		for (int i = 1; i <= regionMaxDepth; i++)
 		{
-			reads++;
-			int newEnd = record.getEnd();
-			if (newEnd > end)
+			positions += regionDepthFrequencies[i];
+			if (median == 0 && positions >= medianRank)
 			{
-				end = newEnd;
+				median = i;
 			}
+
+			regionDepthFrequencies[i] = 0;
 		}
+
+		if (meanDepth >= coverageThreshold)
+		{
+			Interval interval = new Interval(contig, regionStart, regionEnd);
+			intervals.put(interval,
+					new RegionDepth(meanDepth, median, regionMaxDepth));
+		}
+
+		regionStart = -1;
+	}
+
+	/**
+	 * grow the depth change window so that it holds at least the given number
+	 * of positions from done
+	 * 
+	 * @param positions
+	 */
+	private void growWindow(int positions)
+	{
+		int size = depthChanges.length;
+		while (size < positions)
+		{
+			size *= 2;
+		}
+
+		int[] grown = new int[size];
+		for (int position = done; position <= maxEnd; position++)
+		{
+			grown[position & (size - 1)] = depthChanges[position & mask];
+		}
+
+		depthChanges = grown;
+		mask = size - 1;
 	}
 
 	public void write() throws IOException
@@ -120,9 +331,10 @@ public class CoveredRegions
 		BufferedWriter writer = new BufferedWriter(
 				new FileWriter(bamFileName + ".covered-regions"));
 
+		DecimalFormat decimalFormat = new DecimalFormat("#.##");
 		for (Interval interval : intervals.keySet())
 		{
-			int coverage = intervals.get(interval);
+			RegionDepth regionDepth = intervals.get(interval);
 
 			String contig = interval.getContig();
 			int start = interval.getStart();
@@ -133,7 +345,9 @@ public class CoveredRegions
 			writer.write(start + "\t");
 			writer.write(end + "\t");
 			writer.write((end - start + 1) + "\t");
-			writer.write(coverage + "\t");
+			writer.write(decimalFormat.format(regionDepth.mean) + "\t");
+			writer.write(regionDepth.median + "\t");
+			writer.write(regionDepth.max + "\t");
 
 			// get the names of exons overlapping the region
 			String exonNames = "";
@@ -152,4 +366,20 @@ public class CoveredRegions
 		writer.close();
 	}
 
+	/**
+	 * depth summary of a covered region
+	 */
+	private static class RegionDepth
+	{
+		private final double mean;
+		private final int median;
+		private final int max;
+
+		private RegionDepth(double mean, int median, int max)
+		{
+			this.mean = mean;
+			this.median = median;
+			this.max = max;
+		}
+	}
 }
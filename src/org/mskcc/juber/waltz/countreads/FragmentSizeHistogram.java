@@ -0,0 +1,193 @@
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.countreads;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Frequencies of fragment sizes 1 to maxSize, for all fragments and
+ *         for unique fragments, in primitive arrays indexed by size. Sizes
+ *         above maxSize are counted in an overflow bucket.
+ * 
+ */
+public class FragmentSizeHistogram
+{
+	private final int maxSize;
+	private final long[] total;
+	private final long[] unique;
+	private long totalOverflow;
+	private long uniqueOverflow;
+
+	public FragmentSizeHistogram(int maxSize)
+	{
+		this.maxSize = maxSize;
+		this.total = new long[maxSize + 1];
+		this.unique = new long[maxSize + 1];
+	}
+
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * 
+	 * @param fragmentSize
+	 *            must be positive
+	 */
+	public void addTotal(int fragmentSize)
+	{
+		if (fragmentSize > maxSize)
+		{
+			totalOverflow++;
+		}
+		else
+		{
+			total[fragmentSize]++;
+		}
+	}
+
+	/**
+	 * 
+	 * @param fragmentSize
+	 *            must be positive
+	 */
+	public void addUnique(int fragmentSize)
+	{
+		if (fragmentSize > maxSize)
+		{
+			uniqueOverflow++;
+		}
+		else
+		{
+			unique[fragmentSize]++;
+		}
+	}
+
+	public long getTotal(int fragmentSize)
+	{
+		return total[fragmentSize];
+	}
+
+	public long getUnique(int fragmentSize)
+	{
+		return unique[fragmentSize];
+	}
+
+	public long getTotalOverflow()
+	{
+		return totalOverflow;
+	}
+
+	public long getUniqueOverflow()
+	{
+		return uniqueOverflow;
+	}
+
+	/**
+	 * add the frequencies of the given histogram to this one
+	 * 
+	 * @param other
+	 *            must have the same maxSize
+	 */
+	public void add(FragmentSizeHistogram other)
+	{
+		if (other.maxSize != maxSize)
+		{
+			throw new IllegalArgumentException(
+					"Histograms have different max sizes: " + maxSize + ", "
+							+ other.maxSize);
+		}
+
+		for (int i = 0; i <= maxSize; i++)
+		{
+			total[i] += other.total[i];
+			unique[i] += other.unique[i];
+		}
+
+		totalOverflow += other.totalOverflow;
+		uniqueOverflow += other.uniqueOverflow;
+	}
+
+	public Stats totalStats()
+	{
+		return new Stats(total, totalOverflow);
+	}
+
+	public Stats uniqueStats()
+	{
+		return new Stats(unique, uniqueOverflow);
+	}
+
+	/**
+	 * summary statistics of one of the histograms, over the sizes up to
+	 * maxSize. Percentiles are nearest-rank.
+	 */
+	public static class Stats
+	{
+		public final long fragments;
+		public final long overflow;
+		public final double mean;
+		public final int mode;
+		public final int median;
+		private final long[] frequencies;
+
+		private Stats(long[] frequencies, long overflow)
+		{
+			this.frequencies = frequencies;
+			this.overflow = overflow;
+
+			long fragments = 0;
+			long sum = 0;
+			int mode = 0;
+			for (int i = 0; i < frequencies.length; i++)
+			{
+				fragments += frequencies[i];
+				sum += frequencies[i] * i;
+				if (frequencies[i] > frequencies[mode])
+				{
+					mode = i;
+				}
+			}
+
+			this.fragments = fragments;
+			this.mean = fragments == 0 ? 0 : (sum * 1.0) / fragments;
+			this.mode = mode;
+			this.median = percentile(50);
+		}
+
+		/**
+		 * 
+		 * @param percent
+		 *            between 0 and 100
+		 * @return the smallest size with at least the given percentage of the
+		 *         fragments at or below it, 0 if there are no fragments
+		 */
+		public int percentile(double percent)
+		{
+			if (fragments == 0)
+			{
+				return 0;
+			}
+
+			long rank = (long) Math.ceil((percent / 100) * fragments);
+			if (rank < 1)
+			{
+				rank = 1;
+			}
+
+			long cumulative = 0;
+			for (int i = 0; i < frequencies.length; i++)
+			{
+				cumulative += frequencies[i];
+				if (cumulative >= rank)
+				{
+					return i;
+				}
+			}
+
+			return frequencies.length - 1;
+		}
+	}
+}
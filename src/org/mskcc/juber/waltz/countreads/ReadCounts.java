@@ -7,8 +7,6 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.text.DecimalFormat;
-import java.util.Map;
-import java.util.TreeMap;
 
 /**
  * @author Juber Patel
@@ -29,7 +27,12 @@ public class ReadCounts
 	protected long totalTargetReads;
 	protected long uniqueTargetReads;
 
-	private Map<Integer, int[]> fragmentSizeFrequencies = new TreeMap<Integer, int[]>();
+	/**
+	 * fragment sizes above this are counted in the overflow bucket
+	 */
+	public static final int maxFragmentSize = 600;
+	private FragmentSizeHistogram fragmentSizes = new FragmentSizeHistogram(
+			maxFragmentSize);
 
 	public ReadCounts(String bamFileName, String sampleID, String targetLabel)
 	{
@@ -68,40 +71,82 @@ public class ReadCounts
 		writer = new BufferedWriter(
 				new FileWriter(bamFileName + ".fragment-sizes"));
 
-		for (Integer fragmentSize : fragmentSizeFrequencies.keySet())
+		for (int fragmentSize = 1; fragmentSize <= maxFragmentSize;
+				fragmentSize++)
 		{
-			int[] freqs = fragmentSizeFrequencies.get(fragmentSize);
-			writer.write(
-					fragmentSize + "\t" + freqs[0] + "\t" + freqs[1] + "\n");
+			long total = fragmentSizes.getTotal(fragmentSize);
+			if (total == 0)
+			{
+				continue;
+			}
+
+			writer.write(fragmentSize + "\t" + total + "\t"
+					+ fragmentSizes.getUnique(fragmentSize) + "\n");
 		}
 
 		writer.close();
 
+		// write fragment size stats
+		writer = new BufferedWriter(
+				new FileWriter(bamFileName + ".fragment-size-stats"));
+		writeStats(writer, "total", fragmentSizes.totalStats(),
+				decimalFormat);
+		writeStats(writer, "unique", fragmentSizes.uniqueStats(),
+				decimalFormat);
+		writer.close();
 	}
 
-	public void addTotalFragmentSize(int fragmentSize)
+	private void writeStats(BufferedWriter writer, String label,
+			FragmentSizeHistogram.Stats stats, DecimalFormat decimalFormat)
+			throws IOException
 	{
-		int[] freqs = fragmentSizeFrequencies.get(fragmentSize);
-		if (freqs == null)
-		{
-			freqs = new int[2];
-			fragmentSizeFrequencies.put(fragmentSize, freqs);
-		}
-
-		freqs[0]++;
+		writer.write(bamFileName + "\t" + label + "\t");
+		writer.write(stats.fragments + "\t");
+		writer.write(decimalFormat.format(stats.mean) + "\t");
+		writer.write(stats.mode + "\t");
+		writer.write(stats.median + "\t");
+		writer.write(stats.percentile(5) + "\t");
+		writer.write(stats.percentile(25) + "\t");
+		writer.write(stats.percentile(75) + "\t");
+		writer.write(stats.percentile(95) + "\t");
+		writer.write(stats.overflow + "\n");
 	}
 
-	public void addUniqueFragmentSize(int fragmentSize)
+	/**
+	 * add the counts of the given ReadCounts to this one
+	 * 
+	 * @param other
+	 */
+	public void add(ReadCounts other)
 	{
-		int[] freqs = fragmentSizeFrequencies.get(fragmentSize);
-		if (freqs == null)
-		{
-			freqs = new int[2];
-			fragmentSizeFrequencies.put(fragmentSize, freqs);
-		}
+		totalReads += other.totalReads;
+		unmappedReads += other.unmappedReads;
+		totalMappedReads += other.totalMappedReads;
+		duplicateMappedReads += other.duplicateMappedReads;
+		uniqueMappedReads += other.uniqueMappedReads;
+		totalTargetReads += other.totalTargetReads;
+		uniqueTargetReads += other.uniqueTargetReads;
+		fragmentSizes.add(other.fragmentSizes);
+	}
 
-		freqs[1]++;
+	/**
+	 * 
+	 * @param fragmentSize
+	 *            must be positive
+	 */
+	public void addTotalFragmentSize(int fragmentSize)
+	{
+		fragmentSizes.addTotal(fragmentSize);
+	}
 
+	/**
+	 * 
+	 * @param fragmentSize
+	 *            must be positive
+	 */
+	public void addUniqueFragmentSize(int fragmentSize)
+	{
+		fragmentSizes.addUnique(fragmentSize);
 	}
 
 }
@@ -0,0 +1,79 @@
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.countreads;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.util.Interval;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Collects the CountReads metrics (.read-counts, .fragment-sizes,
+ *         .fragment-size-stats and .covered-regions) from records fed in by
+ *         someone else's scan of the bam file, so that one pass over the
+ *         records can produce these along with other metrics. All the records
+ *         of the bam file must be added, in file order.
+ * 
+ */
+public class StreamingCountReads
+{
+	private ReadCounts readCounts;
+	private CoveredRegions coveredRegions;
+	private TargetIndex targetIndex;
+
+	/**
+	 * 
+	 * @param bamFile
+	 * @param header
+	 * @param coverageThreshold
+	 * @param transcriptsFile
+	 * @param intervalsFile
+	 *            the bed file of the target intervals, its name is the
+	 *            target label
+	 * @param intervals
+	 *            the target intervals
+	 * @throws IOException
+	 */
+	public StreamingCountReads(File bamFile, SAMFileHeader header,
+			int coverageThreshold, File transcriptsFile, File intervalsFile,
+			List<Interval> intervals) throws IOException
+	{
+		String fileName = intervalsFile.getName();
+		String intervalsLabel = fileName.substring(0, fileName.indexOf(".bed"));
+		// It is assumed that there is only one read group in the bam file!!!
+		String sampleID = header.getReadGroups().get(0).getSample();
+
+		this.readCounts = new ReadCounts(bamFile.getName(), sampleID,
+				intervalsLabel);
+		this.coveredRegions = new CoveredRegions(bamFile.getName(),
+				coverageThreshold, transcriptsFile);
+		this.targetIndex = CountReads.toTargetIndex(intervals);
+	}
+
+	public void add(SAMRecord record)
+	{
+		try
+		{
+			CountReads.countRecord(record, readCounts, coveredRegions,
+					targetIndex);
+		}
+		catch (Exception e)
+		{
+			System.err.println("Problem processing record:");
+			System.err.println(record.getSAMString());
+			e.printStackTrace();
+		}
+	}
+
+	public void write() throws IOException
+	{
+		coveredRegions.write();
+		readCounts.write();
+	}
+}
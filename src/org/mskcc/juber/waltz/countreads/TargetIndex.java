@@ -0,0 +1,240 @@
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.countreads;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.util.Interval;
+
+/**
+ * @author Juber Patel
+ * 
+ *         On-target lookup for the reads of a coordinate-sorted bam file. The
+ *         target intervals of each contig are kept sorted and merged in
+ *         primitive arrays. A cursor moves forward with the reads so that
+ *         each lookup is amortized constant time and allocates nothing. Reads
+ *         out of order are still answered correctly, with a binary search.
+ *         Interval names are only looked up on request.
+ * 
+ *         Not thread safe because of the cursor, each thread needs its own.
+ * 
+ */
+public class TargetIndex
+{
+	private Map<String, ContigTargets> contigs;
+	private ContigTargets current;
+	private String currentContig;
+	private int cursor;
+	private int lastStart;
+
+	/**
+	 * 
+	 * @param intervals
+	 * @param minReadOverlap
+	 *            each interval is shortened by this much at both ends so that
+	 *            a read is on target only if it overlaps the interval by at
+	 *            least this much. Intervals too short to shorten become their
+	 *            middle position.
+	 */
+	public TargetIndex(List<Interval> intervals, int minReadOverlap)
+	{
+		Map<String, List<Interval>> byContig = new HashMap<String, List<Interval>>();
+		for (Interval interval : intervals)
+		{
+			int start = interval.getStart() + minReadOverlap;
+			int end = interval.getEnd() - minReadOverlap;
+			// interval is too short for further shortening
+			if (start > end)
+			{
+				start = end = (interval.getStart() + interval.getEnd()) / 2;
+			}
+
+			List<Interval> list = byContig.get(interval.getContig());
+			if (list == null)
+			{
+				list = new ArrayList<Interval>();
+				byContig.put(interval.getContig(), list);
+			}
+
+			list.add(new Interval(interval.getContig(), start, end, false,
+					interval.getName()));
+		}
+
+		contigs = new HashMap<String, ContigTargets>();
+		for (String contig : byContig.keySet())
+		{
+			contigs.put(contig, new ContigTargets(byContig.get(contig)));
+		}
+	}
+
+	/**
+	 * 
+	 * @param contig
+	 * @param start
+	 * @param end
+	 * @return true if the given region overlaps any target interval
+	 */
+	public boolean isOnTarget(String contig, int start, int end)
+	{
+		if (!contig.equals(currentContig))
+		{
+			currentContig = contig;
+			current = contigs.get(contig);
+			cursor = 0;
+			lastStart = 0;
+		}
+
+		if (current == null)
+		{
+			return false;
+		}
+
+		if (start < lastStart)
+		{
+			// out of order, find the first block that does not end before
+			// start
+			cursor = current.firstEndingAtOrAfter(start);
+		}
+
+		lastStart = start;
+
+		// blocks that end before this start end before all the following
+		// starts too
+		int[] ends = current.ends;
+		while (cursor < ends.length && ends[cursor] < start)
+		{
+			cursor++;
+		}
+
+		return cursor < ends.length && current.starts[cursor] <= end;
+	}
+
+	/**
+	 * 
+	 * @param contig
+	 * @param start
+	 * @param end
+	 * @return the names of the target intervals overlapping the given region
+	 */
+	public List<String> getIntersecting(String contig, int start, int end)
+	{
+		ContigTargets targets = contigs.get(contig);
+		if (targets == null)
+		{
+			return Collections.emptyList();
+		}
+
+		List<String> names = new ArrayList<String>();
+		int block = targets.firstEndingAtOrAfter(start);
+		while (block < targets.ends.length && targets.starts[block] <= end)
+		{
+			int last = targets.firstInterval[block + 1];
+			for (int i = targets.firstInterval[block]; i < last; i++)
+			{
+				Interval interval = targets.intervals[i];
+				if (interval.getStart() <= end && interval.getEnd() >= start)
+				{
+					names.add(interval.getName());
+				}
+			}
+
+			block++;
+		}
+
+		return names;
+	}
+
+	/**
+	 * the targets on one contig
+	 */
+	private static class ContigTargets
+	{
+		/**
+		 * merged blocks, sorted and not overlapping, so the ends are sorted too
+		 */
+		private int[] starts;
+		private int[] ends;
+		/**
+		 * the intervals sorted by start. The intervals of block i are from
+		 * firstInterval[i] to firstInterval[i + 1].
+		 */
+		private Interval[] intervals;
+		private int[] firstInterval;
+
+		private ContigTargets(List<Interval> list)
+		{
+			intervals = list.toArray(new Interval[list.size()]);
+			Arrays.sort(intervals, new Comparator<Interval>()
+			{
+				@Override
+				public int compare(Interval o1, Interval o2)
+				{
+					return Integer.compare(o1.getStart(), o2.getStart());
+				}
+			});
+
+			int[] starts = new int[intervals.length];
+			int[] ends = new int[intervals.length];
+			int[] firstInterval = new int[intervals.length + 1];
+			int blocks = 0;
+			for (int i = 0; i < intervals.length; i++)
+			{
+				Interval interval = intervals[i];
+				if (blocks > 0 && interval.getStart() <= ends[blocks - 1] + 1)
+				{
+					// overlaps or touches the last block
+					if (interval.getEnd() > ends[blocks - 1])
+					{
+						ends[blocks - 1] = interval.getEnd();
+					}
+				}
+				else
+				{
+					starts[blocks] = interval.getStart();
+					ends[blocks] = interval.getEnd();
+					firstInterval[blocks] = i;
+					blocks++;
+				}
+			}
+
+			firstInterval[blocks] = intervals.length;
+
+			this.starts = Arrays.copyOf(starts, blocks);
+			this.ends = Arrays.copyOf(ends, blocks);
+			this.firstInterval = Arrays.copyOf(firstInterval, blocks + 1);
+		}
+
+		/**
+		 * 
+		 * @param position
+		 * @return index of the first block that ends at or after the given
+		 *         position, the number of blocks if there is none
+		 */
+		private int firstEndingAtOrAfter(int position)
+		{
+			int low = 0;
+			int high = ends.length;
+			while (low < high)
+			{
+				int mid = (low + high) >>> 1;
+				if (ends[mid] < position)
+				{
+					low = mid + 1;
+				}
+				else
+				{
+					high = mid;
+				}
+			}
+
+			return low;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.pileup;
+
+import java.util.Arrays;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Map from fragment id to the base the fragment has at a position,
+ *         kept in primitive arrays. Keys are open-addressed with linear
+ *         probing and the occupied slots are remembered in insertion order so
+ *         that iteration and clearing only touch what was used. The arrays are
+ *         reused across clears.
+ * 
+ */
+public class FragmentBases
+{
+	/**
+	 * value returned by get() for a fragment that has no base
+	 */
+	public static final byte noBase = 0;
+	private static final int emptyKey = -1;
+	private static final int initialCapacity = 16;
+
+	private int[] keys;
+	private byte[] values;
+	/**
+	 * occupied slots, in insertion order
+	 */
+	private int[] slots;
+	private int size;
+	private int mask;
+
+	public FragmentBases()
+	{
+		allocate(initialCapacity);
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new int[capacity];
+		Arrays.fill(keys, emptyKey);
+		values = new byte[capacity];
+		slots = new int[capacity / 2];
+		size = 0;
+		mask = capacity - 1;
+	}
+
+	private int slotOf(int fragmentId)
+	{
+		int slot = (fragmentId * 0x9E3779B9) & mask;
+		while (keys[slot] != emptyKey && keys[slot] != fragmentId)
+		{
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            0 <= i < size(), in insertion order
+	 * @return id of the i-th fragment
+	 */
+	public int fragmentAt(int i)
+	{
+		return keys[slots[i]];
+	}
+
+	/**
+	 * 
+	 * @param i
+	 *            0 <= i < size(), in insertion order
+	 * @return base of the i-th fragment
+	 */
+	public byte baseAt(int i)
+	{
+		return values[slots[i]];
+	}
+
+	/**
+	 * 
+	 * @param fragmentId
+	 * @return base of the given fragment or noBase
+	 */
+	public byte get(int fragmentId)
+	{
+		int slot = slotOf(fragmentId);
+		return keys[slot] == emptyKey ? noBase : values[slot];
+	}
+
+	/**
+	 * set the base for the given fragment
+	 * 
+	 * @param fragmentId
+	 *            non-negative
+	 * @param base
+	 * @return the previous base or noBase
+	 */
+	public byte put(int fragmentId, byte base)
+	{
+		int slot = slotOf(fragmentId);
+		if (keys[slot] != emptyKey)
+		{
+			byte old = values[slot];
+			values[slot] = base;
+			return old;
+		}
+
+		if (size == slots.length)
+		{
+			grow();
+			slot = slotOf(fragmentId);
+		}
+
+		keys[slot] = fragmentId;
+		values[slot] = base;
+		slots[size++] = slot;
+		return noBase;
+	}
+
+	/**
+	 * double the capacity, keeping the insertion order
+	 */
+	private void grow()
+	{
+		int[] oldKeys = keys;
+		byte[] oldValues = values;
+		int[] oldSlots = slots;
+		int oldSize = size;
+
+		allocate(keys.length * 2);
+		for (int i = 0; i < oldSize; i++)
+		{
+			int slot = slotOf(oldKeys[oldSlots[i]]);
+			keys[slot] = oldKeys[oldSlots[i]];
+			values[slot] = oldValues[oldSlots[i]];
+			slots[size++] = slot;
+		}
+	}
+
+	/**
+	 * remove all entries, keeping the capacity
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < size; i++)
+		{
+			keys[slots[i]] = emptyKey;
+		}
+
+		size = 0;
+	}
+}
@@ -0,0 +1,513 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.pileup;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Pileup of a run of consecutive positions, stored by column: one
+ *         primitive array per count, indexed by position. Scanning a count
+ *         over the positions touches only that count's array. PositionPileup
+ *         gives the old per-position view of the same data.
+ * 
+ */
+public class PileupColumns
+{
+	public byte[] refBases;
+	// fragment counts for each base call
+	public int[] aCounts;
+	public int[] cCounts;
+	public int[] gCounts;
+	public int[] tCounts;
+	/**
+	 * fragments with N or an unrecognized base
+	 */
+	public int[] nCounts;
+	/**
+	 * insertions immediately before the position
+	 */
+	public int[] insertions;
+	public int[] deletions;
+	public int[] softClips;
+	public int[] softClipStarts;
+	public int[] softClipStartQualities;
+	public int[] softClipEnds;
+	public int[] softClipEndQualities;
+	public int[] hardClips;
+	public int[] hardClipStarts;
+	public int[] hardClipStartQualities;
+	public int[] hardClipEnds;
+	public int[] hardClipEndQualities;
+	/**
+	 * base seen at each position for each fragment, keyed by fragment id.
+	 * Null if these columns keep only counts.
+	 */
+	public FragmentBases[] fragmentBases;
+
+	/**
+	 * 
+	 * @param capacity
+	 * @param keepFragmentBases
+	 *            whether to keep the fragment bases. Base counts of columns
+	 *            that don't are computed from another PileupColumns, see
+	 *            computeCounts().
+	 */
+	public PileupColumns(int capacity, boolean keepFragmentBases)
+	{
+		refBases = new byte[0];
+		aCounts = new int[0];
+		cCounts = new int[0];
+		gCounts = new int[0];
+		tCounts = new int[0];
+		nCounts = new int[0];
+		insertions = new int[0];
+		deletions = new int[0];
+		softClips = new int[0];
+		softClipStarts = new int[0];
+		softClipStartQualities = new int[0];
+		softClipEnds = new int[0];
+		softClipEndQualities = new int[0];
+		hardClips = new int[0];
+		hardClipStarts = new int[0];
+		hardClipStartQualities = new int[0];
+		hardClipEnds = new int[0];
+		hardClipEndQualities = new int[0];
+		if (keepFragmentBases)
+		{
+			fragmentBases = new FragmentBases[0];
+		}
+
+		ensureCapacity(capacity);
+	}
+
+	public int capacity()
+	{
+		return refBases.length;
+	}
+
+	/**
+	 * grow the columns to hold at least the given number of positions,
+	 * keeping the existing values
+	 * 
+	 * @param capacity
+	 */
+	public void ensureCapacity(int capacity)
+	{
+		int oldCapacity = refBases.length;
+		if (oldCapacity >= capacity)
+		{
+			return;
+		}
+
+		refBases = Arrays.copyOf(refBases, capacity);
+		aCounts = Arrays.copyOf(aCounts, capacity);
+		cCounts = Arrays.copyOf(cCounts, capacity);
+		gCounts = Arrays.copyOf(gCounts, capacity);
+		tCounts = Arrays.copyOf(tCounts, capacity);
+		nCounts = Arrays.copyOf(nCounts, capacity);
+		insertions = Arrays.copyOf(insertions, capacity);
+		deletions = Arrays.copyOf(deletions, capacity);
+		softClips = Arrays.copyOf(softClips, capacity);
+		softClipStarts = Arrays.copyOf(softClipStarts, capacity);
+		softClipStartQualities = Arrays.copyOf(softClipStartQualities,
+				capacity);
+		softClipEnds = Arrays.copyOf(softClipEnds, capacity);
+		softClipEndQualities = Arrays.copyOf(softClipEndQualities, capacity);
+		hardClips = Arrays.copyOf(hardClips, capacity);
+		hardClipStarts = Arrays.copyOf(hardClipStarts, capacity);
+		hardClipStartQualities = Arrays.copyOf(hardClipStartQualities,
+				capacity);
+		hardClipEnds = Arrays.copyOf(hardClipEnds, capacity);
+		hardClipEndQualities = Arrays.copyOf(hardClipEndQualities, capacity);
+		if (fragmentBases != null)
+		{
+			fragmentBases = Arrays.copyOf(fragmentBases, capacity);
+			for (int i = oldCapacity; i < capacity; i++)
+			{
+				fragmentBases[i] = new FragmentBases();
+			}
+		}
+	}
+
+	/**
+	 * clear the positions from start to end, exclusive, and set their
+	 * reference bases
+	 * 
+	 * @param start
+	 * @param end
+	 * @param reference
+	 * @param referenceOffset
+	 *            index in reference of the base for start
+	 */
+	public void reset(int start, int end, byte[] reference,
+			int referenceOffset)
+	{
+		System.arraycopy(reference, referenceOffset, refBases, start,
+				end - start);
+		Arrays.fill(aCounts, start, end, 0);
+		Arrays.fill(cCounts, start, end, 0);
+		Arrays.fill(gCounts, start, end, 0);
+		Arrays.fill(tCounts, start, end, 0);
+		Arrays.fill(nCounts, start, end, 0);
+		Arrays.fill(insertions, start, end, 0);
+		Arrays.fill(deletions, start, end, 0);
+		Arrays.fill(softClips, start, end, 0);
+		Arrays.fill(softClipStarts, start, end, 0);
+		Arrays.fill(softClipStartQualities, start, end, 0);
+		Arrays.fill(softClipEnds, start, end, 0);
+		Arrays.fill(softClipEndQualities, start, end, 0);
+		Arrays.fill(hardClips, start, end, 0);
+		Arrays.fill(hardClipStarts, start, end, 0);
+		Arrays.fill(hardClipStartQualities, start, end, 0);
+		Arrays.fill(hardClipEnds, start, end, 0);
+		Arrays.fill(hardClipEndQualities, start, end, 0);
+		if (fragmentBases != null)
+		{
+			for (int i = start; i < end; i++)
+			{
+				fragmentBases[i].clear();
+			}
+		}
+	}
+
+	/**
+	 * move the positions from start to end, exclusive, to the beginning of
+	 * the columns. The positions after them are left undefined.
+	 * 
+	 * @param start
+	 * @param end
+	 */
+	public void shift(int start, int end)
+	{
+		if (start == 0)
+		{
+			return;
+		}
+
+		int length = end - start;
+		System.arraycopy(refBases, start, refBases, 0, length);
+		System.arraycopy(aCounts, start, aCounts, 0, length);
+		System.arraycopy(cCounts, start, cCounts, 0, length);
+		System.arraycopy(gCounts, start, gCounts, 0, length);
+		System.arraycopy(tCounts, start, tCounts, 0, length);
+		System.arraycopy(nCounts, start, nCounts, 0, length);
+		System.arraycopy(insertions, start, insertions, 0, length);
+		System.arraycopy(deletions, start, deletions, 0, length);
+		System.arraycopy(softClips, start, softClips, 0, length);
+		System.arraycopy(softClipStarts, start, softClipStarts, 0, length);
+		System.arraycopy(softClipStartQualities, start,
+				softClipStartQualities, 0, length);
+		System.arraycopy(softClipEnds, start, softClipEnds, 0, length);
+		System.arraycopy(softClipEndQualities, start, softClipEndQualities, 0,
+				length);
+		System.arraycopy(hardClips, start, hardClips, 0, length);
+		System.arraycopy(hardClipStarts, start, hardClipStarts, 0, length);
+		System.arraycopy(hardClipStartQualities, start,
+				hardClipStartQualities, 0, length);
+		System.arraycopy(hardClipEnds, start, hardClipEnds, 0, length);
+		System.arraycopy(hardClipEndQualities, start, hardClipEndQualities, 0,
+				length);
+
+		if (fragmentBases == null)
+		{
+			return;
+		}
+
+		// rotate the fragment bases so that every slot keeps its own object
+		FragmentBases[] moved = Arrays.copyOf(fragmentBases, start);
+		System.arraycopy(fragmentBases, start, fragmentBases, 0, length);
+		System.arraycopy(moved, 0, fragmentBases, length, start);
+	}
+
+	/**
+	 * record the base the given fragment has at the given position. The base
+	 * counts are not updated, see computeCounts().
+	 * 
+	 * @param index
+	 * @param base
+	 * @param fragmentId
+	 * @param readPairMismatchPolicy
+	 */
+	public void addBase(int index, char base, int fragmentId,
+			int readPairMismatchPolicy)
+	{
+		char old = (char) fragmentBases[index].get(fragmentId);
+		// first read for this position
+		if (old == FragmentBases.noBase)
+		{
+			setBase(index, fragmentId, base);
+		}
+		else if (Character.toUpperCase(old) == Character.toUpperCase(base))
+		{
+			// they match. Nothing to be done
+		}
+		else if (readPairMismatchPolicy == 0)
+		{
+			// make it N in case of mismatch and policy=0
+			setBase(index, fragmentId, PositionPileup.nChar);
+		}
+		else if ((old != (char) refBases[index] && old != PositionPileup.nChar)
+				|| base == PositionPileup.nChar)
+		{
+			// bases mismatch and policy is to preserve alt. Order of
+			// preference: alt>ref>N
+			// nothing to be done if old is alt or new is N.
+		}
+		else
+		{
+			// else put in new
+			setBase(index, fragmentId, base);
+		}
+	}
+
+	private void setBase(int index, int fragmentId, char base)
+	{
+		fragmentBases[index].put(fragmentId, (byte) base);
+	}
+
+	/**
+	 * compute the base and deletion counts of the positions from start to
+	 * end, exclusive, from the fragment bases. Fragments that are duplicates
+	 * are counted only in these columns, the rest in both these columns and
+	 * withoutDuplicates.
+	 * 
+	 * @param start
+	 * @param end
+	 * @param duplicates
+	 *            ids of the duplicate fragments
+	 * @param withoutDuplicates
+	 */
+	public void computeCounts(int start, int end, BitSet duplicates,
+			PileupColumns withoutDuplicates)
+	{
+		// counts by base type, see baseType()
+		int[] all = new int[6];
+		int[] unique = new int[6];
+		for (int i = start; i < end; i++)
+		{
+			Arrays.fill(all, 0);
+			Arrays.fill(unique, 0);
+			FragmentBases bases = fragmentBases[i];
+			int size = bases.size();
+			for (int j = 0; j < size; j++)
+			{
+				int type = baseType(bases.baseAt(j));
+				all[type]++;
+				if (!duplicates.get(bases.fragmentAt(j)))
+				{
+					unique[type]++;
+				}
+			}
+
+			setCounts(i, all);
+			withoutDuplicates.setCounts(i, unique);
+		}
+	}
+
+	/**
+	 * 
+	 * @param base
+	 * @return 0 to 3 for A, C, G, T in either case, 4 for deletion and 5 for
+	 *         N or any other base
+	 */
+	private static int baseType(byte base)
+	{
+		switch (base)
+		{
+			case 'A':
+			case 'a':
+				return 0;
+			case 'C':
+			case 'c':
+				return 1;
+			case 'G':
+			case 'g':
+				return 2;
+			case 'T':
+			case 't':
+				return 3;
+			case 'D':
+				return 4;
+			default:
+				return 5;
+		}
+	}
+
+	private void setCounts(int index, int[] counts)
+	{
+		aCounts[index] = counts[0];
+		cCounts[index] = counts[1];
+		gCounts[index] = counts[2];
+		tCounts[index] = counts[3];
+		deletions[index] = counts[4];
+		nCounts[index] = counts[5];
+	}
+
+	public void addInsertion(int index)
+	{
+		insertions[index]++;
+	}
+
+	/**
+	 * increment clipping read number
+	 * 
+	 * @param index
+	 * @param hard
+	 *            hard or soft
+	 */
+	public void addClip(int index, boolean hard)
+	{
+		if (hard)
+		{
+			hardClips[index]++;
+		}
+		else
+		{
+			softClips[index]++;
+		}
+	}
+
+	/**
+	 * 
+	 * @param index
+	 * @param baseQuality
+	 * @param hard
+	 *            hard or soft
+	 */
+	public void addClipEnd(int index, byte baseQuality, boolean hard)
+	{
+		if (hard)
+		{
+			hardClipEnds[index]++;
+			hardClipEndQualities[index] += baseQuality;
+		}
+		else
+		{
+			softClipEnds[index]++;
+			softClipEndQualities[index] += baseQuality;
+		}
+	}
+
+	/**
+	 * 
+	 * @param index
+	 * @param baseQuality
+	 * @param hard
+	 *            hard or soft
+	 */
+	public void addClipStart(int index, byte baseQuality, boolean hard)
+	{
+		if (hard)
+		{
+			hardClipStarts[index]++;
+			hardClipStartQualities[index] += baseQuality;
+		}
+		else
+		{
+			softClipStarts[index]++;
+			softClipStartQualities[index] += baseQuality;
+		}
+	}
+
+	/**
+	 * 
+	 * @param index
+	 * @return A, C, G, T and deletion count
+	 */
+	public int getCoverage(int index)
+	{
+		// TODO double check if deletions should be part of this value
+		return aCounts[index] + cCounts[index] + gCounts[index]
+				+ tCounts[index] + deletions[index];
+	}
+
+	/**
+	 * 
+	 * @param index
+	 * @param base
+	 *            A, C, G, T, I for insertion or D for deletion
+	 * @return count of the base or -1 for any other base
+	 */
+	public int getCount(int index, byte base)
+	{
+		if (base == 'A' || base == 'a')
+		{
+			return aCounts[index];
+		}
+		else if (base == 'C' || base == 'c')
+		{
+			return cCounts[index];
+		}
+		else if (base == 'G' || base == 'g')
+		{
+			return gCounts[index];
+		}
+		else if (base == 'T' || base == 't')
+		{
+			return tCounts[index];
+		}
+		else if (base == 'I')
+		{
+			return insertions[index];
+		}
+		else if (base == 'D')
+		{
+			return deletions[index];
+		}
+		else
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * append the text pileup columns of the given position: ref, depth
+	 * (including N's), A, C, G, T, insertions, deletions, soft clip starts,
+	 * soft clip ends, hard clip starts, hard clip ends
+	 * 
+	 * @param index
+	 * @param builder
+	 */
+	public void appendTo(int index, StringBuilder builder)
+	{
+		builder.append((char) refBases[index]).append('\t');
+		builder.append(getCoverage(index) + nCounts[index]).append('\t');
+		builder.append(aCounts[index]).append('\t');
+		builder.append(cCounts[index]).append('\t');
+		builder.append(gCounts[index]).append('\t');
+		builder.append(tCounts[index]).append('\t');
+		builder.append(insertions[index]).append('\t');
+		builder.append(deletions[index]).append('\t');
+		builder.append(softClipStarts[index]).append('\t');
+		builder.append(softClipEnds[index]).append('\t');
+		builder.append(hardClipStarts[index]).append('\t');
+		builder.append(hardClipEnds[index]);
+	}
+}
@@ -26,340 +26,90 @@
  */
 package org.mskcc.juber.waltz.pileup;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * @author Juber Patel
  * 
- *         Pileup at a specific genomic position (e.g. chr 2 position 3000000)
+ *         Pileup at a specific genomic position (e.g. chr 2 position 3000000).
+ *         A view of one position of a PileupColumns.
  * 
  */
 public class PositionPileup
 {
-
-	/**
-	 * number of reads supporting various events, in the order Ref, non-Ref, A,
-	 * C, G, T, N, soft clip, hard clip, insertion,
-	 * deletion, skipped region from genome.
-	 * 
-	 * Insertion read count refers to insertion immediately before this
-	 * position.
-	 */
-	// private int[] readCount;
-
-	private byte refBase;
-	// read counts supporting various base calls
-	// counts for A, C, G, T and N for this position
-	private int[] baseCounts;
-	private int softClips;
-	private int softClipStarts;
-	private int softClipStartQuality;
-	private int softClipEnds;
-	private int softClipEndQuality;
-	private int hardClips;
-	private int hardClipStarts;
-	private int hardClipStartQuality;
-	private int hardClipEnds;
-	private int hardClipEndQuality;
-	private int insertions;
-	private int deletions;
-	private int deletionsQuality;
-	private int skipped;
-	private int mateUnmapped;
-	private int mateDistanceUnexpected;
-	private int readSplitPoint;
-	private Map<String, Character> fragmentBases;
 	public static char nChar = 'N';
 
-	public PositionPileup()
-	{
-		// set the values that are not set by default
-		// this value should never be seen anywhere
-		refBase = '?';
-		baseCounts = new int[5];
-		fragmentBases = new HashMap<String, Character>();
-	}
-
-	public void reset(byte refBase)
-	{
-		this.refBase = refBase;
-		for (int i = 0; i < baseCounts.length; i++)
-		{
-			baseCounts[i] = 0;
-		}
-
-		fragmentBases.clear();
-
-		softClips = 0;
-		softClipStarts = 0;
-		softClipEnds = 0;
-		softClipStartQuality = 0;
-		softClipEndQuality = 0;
-		hardClips = 0;
-		hardClipStarts = 0;
-		hardClipStartQuality = 0;
-		hardClipEnds = 0;
-		hardClipEndQuality = 0;
-
-		insertions = 0;
-		deletions = 0;
-		skipped = 0;
-		mateUnmapped = 0;
-		mateDistanceUnexpected = 0;
-		readSplitPoint = 0;
-	}
-
-	public void addBase(char base, String fragmentName,
-			int readPairMismatchPolicy)
-	{
-		Character old = fragmentBases.get(fragmentName);
-		// first read for this position
-		if (old == null)
-		{
-			fragmentBases.put(fragmentName, base);
-		}
-		else if (Character.toUpperCase(old) == Character.toUpperCase(base))
-		{
-			// they match. Nothing to be done
-		}
-		else if (readPairMismatchPolicy == 0)
-		{
-			// make it N in case of mismatch and policy=0
-			fragmentBases.put(fragmentName, nChar);
-		}
-		else if ((old != (char) refBase && old != nChar) || base == nChar)
-		{
-			// bases mismatch and policy is to preserve alt. Order of
-			// preference: alt>ref>N
-			// nothing to be done if old is alt or new is N.
-		}
-		else
-		{
-			// else put in new
-			fragmentBases.put(fragmentName, base);
-		}
-	}
+	private PileupColumns columns;
+	private int index;
 
 	/**
-	 * compute per base count from fragment->base map
+	 * 
+	 * @param columns
+	 * @param index
+	 *            the position in columns this is a view of
 	 */
-	public void computeCounts()
+	public PositionPileup(PileupColumns columns, int index)
 	{
-		for (int i = 0; i < baseCounts.length; i++)
-		{
-			baseCounts[i] = 0;
-		}
-
-		deletions = 0;
-
-		for (String fragment : fragmentBases.keySet())
-		{
-			char base = fragmentBases.get(fragment);
-
-			if (base == 'A' || base == 'a')
-			{
-				baseCounts[0]++;
-			}
-			else if (base == 'C' || base == 'c')
-			{
-				baseCounts[1]++;
-			}
-			else if (base == 'G' || base == 'g')
-			{
-				baseCounts[2]++;
-			}
-			else if (base == 'T' || base == 't')
-			{
-				baseCounts[3]++;
-			}
-			else if (base == 'D')
-			{
-				deletions++;
-			}
-			else
-			{
-				baseCounts[4]++;
-			}
-		}
-	}
-
-	private void addBaseOld(byte base, String fragmentName)
-	{
-		if (base == 'A' || base == 'a')
-		{
-			baseCounts[0]++;
-		}
-		else if (base == 'C' || base == 'c')
-		{
-			baseCounts[1]++;
-		}
-		else if (base == 'G' || base == 'g')
-		{
-			baseCounts[2]++;
-		}
-		else if (base == 'T' || base == 't')
-		{
-			baseCounts[3]++;
-		}
-		else
-		{
-			baseCounts[4]++;
-		}
+		this.columns = columns;
+		this.index = index;
 	}
 
 	public int getCount(byte base)
 	{
-		if (base == 'A' || base == 'a')
-		{
-			return baseCounts[0];
-		}
-		else if (base == 'C' || base == 'c')
-		{
-			return baseCounts[1];
-		}
-		else if (base == 'G' || base == 'g')
-		{
-			return baseCounts[2];
-		}
-		else if (base == 'T' || base == 't')
-		{
-			return baseCounts[3];
-		}
-		else if (base == 'I')
-		{
-			return insertions;
-		}
-		else if (base == 'D')
-		{
-			return deletions;
-		}
-		else
-		{
-			return -1;
-		}
+		return columns.getCount(index, base);
 	}
 
 	public int getCoverage()
 	{
-		// TODO double check if deletions should be part of this value
-		return baseCounts[0] + baseCounts[1] + baseCounts[2] + baseCounts[3]
-				+ deletions;
-	}
-
-	public Map<String, Character> getFragmentBases()
-	{
-		return fragmentBases;
-	}
-
-	public void addInsertion(int length)
-	{
-		insertions++;
+		return columns.getCoverage(index);
 	}
 
 	/**
-	 * increment clipping read number
 	 * 
-	 * @param hard
-	 *            hard or soft
+	 * @return the fragment bases or null if the columns don't keep them
 	 */
-	public void addClip(boolean hard)
+	public FragmentBases getFragmentBases()
 	{
-		if (hard)
-		{
-			hardClips++;
-		}
-		else
-		{
-			softClips++;
-		}
+		return columns.fragmentBases == null ? null
+				: columns.fragmentBases[index];
 	}
 
-	/**
-	 * 
-	 * @param baseQuality
-	 * @param hard
-	 *            hard or soft
-	 */
-	public void addClipEnd(byte baseQuality, boolean hard)
+	public String toString()
 	{
-		if (hard)
-		{
-			hardClipEnds++;
-			hardClipEndQuality += baseQuality;
-		}
-		else
-		{
-			softClipEnds++;
-			softClipEndQuality += baseQuality;
-		}
+		StringBuilder builder = new StringBuilder();
+		columns.appendTo(index, builder);
+		return builder.toString();
 	}
 
-	/**
-	 * 
-	 * @param baseQuality
-	 * @param hard
-	 *            hard or soft
-	 */
-	public void addClipStart(byte baseQuality, boolean hard)
+	public byte getRefBase()
 	{
-		if (hard)
-		{
-			hardClipStarts++;
-			hardClipStartQuality += baseQuality;
-		}
-		else
-		{
-			softClipStarts++;
-			softClipStartQuality += baseQuality;
-		}
+		return columns.refBases[index];
 	}
 
-	private void updateMateInfo(boolean mateUnmapped,
-			boolean mateDistanceUnexpected)
+	public int getHardClipStarts()
 	{
-		if (mateUnmapped)
-		{
-			this.mateUnmapped++;
-		}
-		else if (mateDistanceUnexpected)
-		{
-			this.mateDistanceUnexpected++;
-		}
+		return columns.hardClipStarts[index];
 	}
 
-	public String toString()
+	public int getHardClipEnds()
 	{
-		StringBuilder builder = new StringBuilder();
-
-		builder.append((char) refBase).append('\t');
-		builder.append(getCoverage() + baseCounts[4]).append('\t');
-		builder.append(baseCounts[0]).append('\t');
-		builder.append(baseCounts[1]).append('\t');
-		builder.append(baseCounts[2]).append('\t');
-		builder.append(baseCounts[3]).append('\t');
-		builder.append(insertions).append('\t');
-		builder.append(deletions).append('\t');
-		builder.append(softClipStarts).append('\t');
-		builder.append(softClipEnds).append('\t');
-		builder.append(hardClipStarts).append('\t');
-		builder.append(hardClipEnds);
-
-		return builder.toString();
+		return columns.hardClipEnds[index];
 	}
 
-	public byte getRefBase()
+	public int getSoftClipStarts()
 	{
-		return refBase;
+		return columns.softClipStarts[index];
 	}
 
-	public int getHardClipStarts()
+	public int getSoftClipEnds()
 	{
-		return hardClipStarts;
+		return columns.softClipEnds[index];
 	}
 
-	public int getHardClipEnds()
+	/**
+	 * 
+	 * @return number of fragments with N or an unrecognized base
+	 */
+	public int getNCount()
 	{
-		return hardClipEnds;
+		return columns.nCounts[index];
 	}
 }
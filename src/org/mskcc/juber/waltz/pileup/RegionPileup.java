@@ -26,9 +26,11 @@
  */
 package org.mskcc.juber.waltz.pileup;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -38,14 +40,17 @@ import org.mskcc.juber.genotype.Genotype;
 import org.mskcc.juber.genotype.GenotypeEventType;
 import org.mskcc.juber.genotype.GenotypeID;
 import org.mskcc.juber.waltz.Waltz;
+import org.mskcc.juber.waltz.WaltzOutput;
+import org.mskcc.juber.waltz.bam.PackedCigar;
+import org.mskcc.juber.waltz.pileup.processors.ChunkedPileupProcessor;
 import org.mskcc.juber.waltz.pileup.processors.PileupProcessor;
 
 import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
-import htsjdk.samtools.Cigar;
-import htsjdk.samtools.CigarElement;
-import htsjdk.samtools.CigarOperator;
+import gnu.trove.procedure.TObjectIntProcedure;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
 import htsjdk.samtools.util.Interval;
 
@@ -54,17 +59,82 @@ import htsjdk.samtools.util.Interval;
  * 
  *         class that represents a pileup of reads in a very efficient way
  * 
+ *         The counts are kept by column (PileupColumns) for a window of
+ *         positions of the interval. For a ChunkedPileupProcessor, the window
+ *         slides along the interval: positions the coordinate-sorted records
+ *         have moved past are handed to the processor in chunks and the rest
+ *         are moved to the front of the columns, so the memory depends on the
+ *         span of the reads and not on the length of the interval. For other
+ *         processors the window holds the whole interval, which is handed over
+ *         at the end.
+ * 
  */
 public class RegionPileup
 {
+	/**
+	 * reference bases loaded past the end of the interval, enough for the
+	 * ref alleles of deletions starting near the end of the interval
+	 */
+	private static final int referencePadding = 500;
+	/**
+	 * how far behind the start of the latest record the leading clips of the
+	 * following records may still reach. Positions further behind are
+	 * finalized.
+	 */
+	private static final int clipMargin = 1000;
+	/**
+	 * finalized positions are handed to a chunked processor once there are
+	 * this many of them, in chunks of at most this many
+	 */
+	private static final int chunkLength = 1 << 15;
+	private static final int initialCapacity = 1 << 10;
+
 	private IndexedFastaSequenceFile referenceFasta;
+	private SAMSequenceDictionary referenceDictionary;
 	private int readPairMismatchPolicy;
 	private byte[] referenceBases;
+	/**
+	 * reference bases from the interval start to referencePadding bases past
+	 * the interval end, or the contig end
+	 */
+	private byte[] paddedReferenceBases;
 	private Interval interval;
 	// the last valid position in the current pileup
 	private int lastValidPositionIndex;
+	/**
+	 * counts for the positions of the window, the one for pileup index i at
+	 * i - windowStart. The fragment bases are kept only in columns, for all
+	 * fragments, and the base counts of both are computed from them when the
+	 * positions are handed over.
+	 */
+	private PileupColumns columns;
+	private PileupColumns columnsWithoutDuplicates;
+	/**
+	 * per-position views of the columns, for the processors that use them
+	 */
 	private PositionPileup[] positions;
 	private PositionPileup[] positionsWithoutDuplicates;
+	/**
+	 * pileup index of the first position in the columns
+	 */
+	private int windowStart;
+	/**
+	 * the first position not yet handed to the processor
+	 */
+	private int firstPositionIndex;
+	/**
+	 * the positions before this one have been reset for the current interval
+	 */
+	private int preparedPositionIndex;
+	private PileupProcessor processor;
+	/**
+	 * the processor if it takes the pileup in chunks, null otherwise
+	 */
+	private ChunkedPileupProcessor chunkProcessor;
+	/**
+	 * whether the chunked processor has been told about the current interval
+	 */
+	private boolean intervalStarted;
 	private int insertMin;
 	private int insertMax;
 	private boolean mateUnmapped;
@@ -74,10 +144,35 @@ public class RegionPileup
 	private int readIndex;
 	private boolean duplicate = false;
 	/**
-	 * map of fragment name to fragment span
+	 * fragment dictionary: dense id for each fragment name, assigned in the
+	 * order the fragments are seen in the current interval
+	 */
+	private TObjectIntHashMap<String> fragmentIds;
+	/**
+	 * fragments, indexed by fragment id
+	 */
+	private List<Fragment> fragments;
+	private int fragmentCount;
+	private int uniqueFragmentCount;
+	/**
+	 * ids of the fragments that are duplicates
+	 */
+	private BitSet duplicateFragments;
+	/**
+	 * when processing in chunks, the last position at which a read of each
+	 * fragment may start, by fragment id. Fragments the records have moved
+	 * past are dropped from the fragment dictionary.
+	 */
+	private TIntIntHashMap fragmentLastStarts;
+	/**
+	 * id of the fragment the current record belongs to
 	 */
-	private Map<String, Fragment> fragments;
+	private int fragmentId;
 	private int pileupIndex;
+	/**
+	 * CIGAR of the current record
+	 */
+	private PackedCigar cigar;
 	/**
 	 * the first valid position in the pileup for the current read
 	 */
@@ -86,28 +181,131 @@ public class RegionPileup
 	/**
 	 * Genotypes and fragments that have those genotypes.
 	 */
-	private Map<GenotypeID, Set<String>> genotypes;
+	private Map<GenotypeID, BitSet> genotypes;
 
-	public RegionPileup(IndexedFastaSequenceFile referenceFasta,
-			int maxIntervalLength, int insertMin, int insertMax,
-			int readPairMismatchPolicy)
+	/**
+	 * 
+	 * @param referenceFasta
+	 * @param insertMin
+	 * @param insertMax
+	 * @param readPairMismatchPolicy
+	 * @param processor
+	 *            the processor the pileups will be handed to
+	 */
+	public RegionPileup(IndexedFastaSequenceFile referenceFasta, int insertMin,
+			int insertMax, int readPairMismatchPolicy,
+			PileupProcessor processor)
 	{
 		this.referenceFasta = referenceFasta;
+		this.referenceDictionary = referenceFasta.getSequenceDictionary();
 		this.insertMin = insertMin;
 		this.insertMax = insertMax;
 		this.readPairMismatchPolicy = readPairMismatchPolicy;
-		this.positions = new PositionPileup[maxIntervalLength];
-		this.positionsWithoutDuplicates = new PositionPileup[maxIntervalLength];
+		this.processor = processor;
+		if (processor instanceof ChunkedPileupProcessor)
+		{
+			this.chunkProcessor = (ChunkedPileupProcessor) processor;
+		}
+
+		columns = new PileupColumns(0, true);
+		columnsWithoutDuplicates = new PileupColumns(0, false);
+		positions = new PositionPileup[0];
+		positionsWithoutDuplicates = new PositionPileup[0];
+
+		genotypes = new HashMap<GenotypeID, BitSet>();
+		fragmentIds = new TObjectIntHashMap<String>(
+				gnu.trove.impl.Constants.DEFAULT_CAPACITY,
+				gnu.trove.impl.Constants.DEFAULT_LOAD_FACTOR, -1);
+		fragments = new ArrayList<Fragment>();
+		fragmentLastStarts = new TIntIntHashMap();
+		duplicateFragments = new BitSet();
+		cigar = new PackedCigar();
+	}
 
-		// initialize position pileups
-		for (int i = 0; i < positions.length; i++)
+	/**
+	 * make sure the columns can hold the given number of positions from
+	 * windowStart
+	 * 
+	 * @param length
+	 */
+	private void ensureCapacity(int length)
+	{
+		int capacity = positions.length;
+		if (capacity >= length)
+		{
+			return;
+		}
+
+		if (capacity == 0)
 		{
-			positions[i] = new PositionPileup();
-			positionsWithoutDuplicates[i] = new PositionPileup();
+			capacity = initialCapacity;
 		}
 
-		genotypes = new HashMap<GenotypeID, Set<String>>();
-		fragments = new HashMap<String, Fragment>();
+		while (capacity < length)
+		{
+			capacity *= 2;
+		}
+
+		columns.ensureCapacity(capacity);
+		columnsWithoutDuplicates.ensureCapacity(capacity);
+
+		int oldCapacity = positions.length;
+		positions = Arrays.copyOf(positions, capacity);
+		positionsWithoutDuplicates = Arrays.copyOf(positionsWithoutDuplicates,
+				capacity);
+		for (int i = oldCapacity; i < capacity; i++)
+		{
+			positions[i] = new PositionPileup(columns, i);
+			positionsWithoutDuplicates[i] = new PositionPileup(
+					columnsWithoutDuplicates, i);
+		}
+	}
+
+	/**
+	 * move the window so that it starts at the first position not yet handed
+	 * over
+	 */
+	private void slideWindow()
+	{
+		columns.shift(firstPositionIndex - windowStart,
+				preparedPositionIndex - windowStart);
+		columnsWithoutDuplicates.shift(firstPositionIndex - windowStart,
+				preparedPositionIndex - windowStart);
+		windowStart = firstPositionIndex;
+	}
+
+	/**
+	 * reset the positions up to the given one, inclusive, for the current
+	 * interval
+	 * 
+	 * @param pileupIndex
+	 */
+	private void prepareUpTo(int pileupIndex)
+	{
+		if (pileupIndex > lastValidPositionIndex)
+		{
+			pileupIndex = lastValidPositionIndex;
+		}
+
+		if (pileupIndex < preparedPositionIndex)
+		{
+			return;
+		}
+
+		// make room by dropping the positions already handed over
+		if (pileupIndex - windowStart >= positions.length)
+		{
+			slideWindow();
+		}
+
+		ensureCapacity(pileupIndex - windowStart + 1);
+		columns.reset(preparedPositionIndex - windowStart,
+				pileupIndex + 1 - windowStart, referenceBases,
+				preparedPositionIndex);
+		columnsWithoutDuplicates.reset(preparedPositionIndex - windowStart,
+				pileupIndex + 1 - windowStart, referenceBases,
+				preparedPositionIndex);
+		preparedPositionIndex = pileupIndex + 1;
 	}
 
 	/**
@@ -120,19 +318,48 @@ public class RegionPileup
 		int end = interval.getEnd();
 		this.lastValidPositionIndex = end - interval.getStart();
 
-		referenceBases = referenceFasta.getSubsequenceAt(interval.getContig(),
-				interval.getStart(), end).getBases();
+		// without a sequence dictionary the contig length is not known, so
+		// don't pad
+		int paddedEnd = end;
+		if (referenceDictionary != null)
+		{
+			paddedEnd = Math.min(end + referencePadding, referenceDictionary
+					.getSequence(interval.getContig()).getSequenceLength());
+		}
+
+		paddedReferenceBases = referenceFasta.getSubsequenceAt(
+				interval.getContig(), interval.getStart(), paddedEnd)
+				.getBases();
+		referenceBases = Arrays.copyOf(paddedReferenceBases,
+				lastValidPositionIndex + 1);
 		this.interval = interval;
 
 		// clean the pileup for reuse
-		for (int i = 0; i <= lastValidPositionIndex; i++)
+		firstPositionIndex = 0;
+		preparedPositionIndex = 0;
+		windowStart = 0;
+		intervalStarted = false;
+		if (chunkProcessor == null)
 		{
-			positions[i].reset(referenceBases[i]);
-			positionsWithoutDuplicates[i].reset(referenceBases[i]);
+			prepareUpTo(lastValidPositionIndex);
 		}
 
 		genotypes.clear();
+		fragmentIds.clear();
 		fragments.clear();
+		fragmentLastStarts.clear();
+		duplicateFragments.clear();
+		fragmentCount = 0;
+		uniqueFragmentCount = 0;
+	}
+
+	/**
+	 * 
+	 * @return the interval this pileup was last prepped for
+	 */
+	public Interval getInterval()
+	{
+		return interval;
 	}
 
 	public void addRecord(SAMRecord record)
@@ -151,9 +378,133 @@ public class RegionPileup
 		readBases = record.getReadBases();
 		baseQualities = record.getBaseQualities();
 
+		prepareUpTo(record.getUnclippedEnd() - interval.getStart());
 		processRecord(record, mateOverlap, baseQualities);
 	}
 
+	/**
+	 * when processing in chunks, hand the positions the records have moved
+	 * past to the processor. Must be called before adding a record that
+	 * starts at the given position. Does nothing for other processors.
+	 * 
+	 * @param position
+	 *            start of the next record, records must come in coordinate
+	 *            order
+	 * @param output
+	 * @throws IOException
+	 */
+	public void flushBefore(int position, WaltzOutput output)
+			throws IOException
+	{
+		if (chunkProcessor == null)
+		{
+			return;
+		}
+
+		int finalized = Math.min(position - interval.getStart() - clipMargin,
+				lastValidPositionIndex + 1);
+		if (finalized - firstPositionIndex < chunkLength)
+		{
+			return;
+		}
+
+		handOver(finalized, output);
+		forgetFragmentsBefore(position);
+	}
+
+	/**
+	 * hand the pileup, or the rest of it, to the processor and have it
+	 * processed. Must be called after the last record of the interval.
+	 * 
+	 * @param output
+	 * @throws IOException
+	 */
+	public void process(WaltzOutput output) throws IOException
+	{
+		if (chunkProcessor == null)
+		{
+			giveViewTo(processor);
+			processor.processRegion(output);
+			return;
+		}
+
+		handOver(lastValidPositionIndex + 1, output);
+		chunkProcessor.finishInterval(fragmentCount, uniqueFragmentCount,
+				output);
+	}
+
+	/**
+	 * hand the positions before the given one to the chunked processor
+	 * 
+	 * @param end
+	 * @param output
+	 * @throws IOException
+	 */
+	private void handOver(int end, WaltzOutput output) throws IOException
+	{
+		List<Fragment> noFragments = new ArrayList<Fragment>();
+		Map<GenotypeID, BitSet> noGenotypes = new HashMap<GenotypeID, BitSet>();
+
+		// the processor may be shared with pileups of overlapping intervals,
+		// so it is told about the interval only when the chunks start coming
+		if (!intervalStarted)
+		{
+			chunkProcessor.startInterval(interval);
+			intervalStarted = true;
+		}
+
+		while (firstPositionIndex < end)
+		{
+			// the chunk starts at the beginning of the columns
+			int chunkEnd = Math.min(end, firstPositionIndex + chunkLength);
+			slideWindow();
+			ensureCapacity(Math.max(chunkEnd, preparedPositionIndex)
+					- windowStart);
+			prepareUpTo(chunkEnd - 1);
+
+			int length = chunkEnd - firstPositionIndex;
+			columns.computeCounts(0, length, duplicateFragments,
+					columnsWithoutDuplicates);
+			int start = interval.getStart() + firstPositionIndex;
+			Interval chunkInterval = new Interval(interval.getContig(), start,
+					start + length - 1, false, interval.getName());
+			RegionPileupView chunk = new RegionPileupView(
+					Arrays.copyOfRange(referenceBases, firstPositionIndex,
+							chunkEnd),
+					chunkInterval, length - 1, positions,
+					positionsWithoutDuplicates, columns,
+					columnsWithoutDuplicates, noGenotypes, noFragments,
+					insertMin, insertMax);
+			chunkProcessor.processChunk(chunk, output);
+
+			firstPositionIndex = chunkEnd;
+		}
+	}
+
+	/**
+	 * drop the fragments that no record starting at or after the given
+	 * position can belong to
+	 * 
+	 * @param position
+	 */
+	private void forgetFragmentsBefore(final int position)
+	{
+		fragmentIds.retainEntries(new TObjectIntProcedure<String>()
+		{
+			@Override
+			public boolean execute(String name, int id)
+			{
+				if (fragmentLastStarts.get(id) >= position)
+				{
+					return true;
+				}
+
+				fragmentLastStarts.remove(id);
+				return false;
+			}
+		});
+	}
+
 	/**
 	 * process the alignment record
 	 * 
@@ -185,204 +536,218 @@ public class RegionPileup
 		// this has to start at 0 because we are parsing the CIGAR string and
 		// going through it.
 		readIndex = 0;
-		int operatorLength = 0;
-		String fragmentName = record.getReadName();
-		Cigar cigar = record.getCigar();
-		List<CigarElement> elements = cigar.getCigarElements();
+		cigar.load(record);
+		int size = cigar.size();
 
-		for (int i = 0; i < elements.size(); i++)
+		for (int i = 0; i < size; i++)
 		{
-			CigarElement e = elements.get(i);
-			CigarOperator operator = e.getOperator();
-			operatorLength = e.getLength();
-
-			if (operator.equals(CigarOperator.MATCH_OR_MISMATCH))
+			// the rest of the read is past the interval. Only a clip right
+			// after the last valid position would still be recorded, at that
+			// position.
+			if (i > 0 && pileupIndex > lastValidPositionIndex + 1)
 			{
-				MatchMismatchRecord matchMismatchRecord = null;
+				break;
+			}
 
-				// add the bases
-				for (int j = 0; j < operatorLength; j++)
-				{
-					if (pileupIndex >= validPileupStart
-							&& pileupIndex <= lastValidPositionIndex)
+			int element = cigar.get(i);
+			int operatorLength = PackedCigar.length(element);
+
+			switch (PackedCigar.operator(element))
+			{
+				case PackedCigar.matchOrMismatch:
+					addMatchMismatch(operatorLength, mappedRead);
+					// increment both pileup index and read index
+					pileupIndex += operatorLength;
+					readIndex += operatorLength;
+					break;
+				case PackedCigar.insertion:
+					addInsertion(operatorLength, mappedRead);
+					// increment readIndex but not PileupIndex
+					readIndex += operatorLength;
+					break;
+				case PackedCigar.deletion:
+					addDeletion(operatorLength, mappedRead);
+					// increment pileupIndex but don't increment readIndex
+					pileupIndex += operatorLength;
+					break;
+				case PackedCigar.softClip:
+					// soft clips do not count in alignment length, no change
+					// in pileupIndex
+
+					// soft clip at the beginning of alignment
+					if (i == 0)
 					{
-						// add to the unrolled match-mismatch record
-						if (matchMismatchRecord == null)
-						{
-							matchMismatchRecord = new MatchMismatchRecord(
-									interval.getContig(),
-									interval.getStart() + pileupIndex,
-									operatorLength);
-						}
-
-						matchMismatchRecord.add(
-								positions[pileupIndex].getRefBase(),
-								readBases[readIndex]);
-
-						positions[pileupIndex].addBase(
-								(char) readBases[readIndex], fragmentName,
-								readPairMismatchPolicy);
-						if (!duplicate)
-						{
-							positionsWithoutDuplicates[pileupIndex].addBase(
-									(char) readBases[readIndex], fragmentName,
-									readPairMismatchPolicy);
-						}
+						addClip(operatorLength, pileupIndex,
+								baseQualities[operatorLength], true, false);
+					}
+					else
+					{
+						// soft clip at the end of the alignment
+						addClip(operatorLength, pileupIndex - 1,
+								baseQualities[baseQualities.length
+										- operatorLength - 1],
+								false, false);
 					}
 
-					// increment both pileup index and read index
-					pileupIndex++;
-					readIndex++;
-				}
+					// but increment the read index
+					readIndex += operatorLength;
+					break;
+				case PackedCigar.hardClip:
+					// hard clips do not count in alignment length, nor are the
+					// clipped bases included in the read sequence
+					// so no change in either pileupIndex or readIndex
 
-				if (matchMismatchRecord != null)
-				{
-					matchMismatchRecord.recordSubstitutions(mappedRead);
-				}
-			}
-			else if (operator.equals(CigarOperator.INSERTION))
-			{
-				// TODO replace this boundary check with proper tracking of
-				// CIGAR and quitting when it goes out of the region
-				if (pileupIndex > validPileupStart
-						&& pileupIndex <= lastValidPositionIndex)
-				{
-					positions[pileupIndex].addInsertion(operatorLength);
-					if (!duplicate)
+					// hard clip at the beginning of alignment
+					if (i == 0)
+					{
+						addClip(operatorLength, pileupIndex, baseQualities[0],
+								true, true);
+					}
+					else
 					{
-						positionsWithoutDuplicates[pileupIndex]
-								.addInsertion(operatorLength);
+						// hard clip at the end of the alignment
+						addClip(operatorLength, pileupIndex - 1,
+								baseQualities[baseQualities.length - 1], false,
+								true);
 					}
+					break;
+				default:
+					// increment both pileupIndex and readIndex properly
+					pileupIndex += operatorLength;
+					readIndex += operatorLength;
+			}
+		}
+	}
 
-					// add insertion to special genotypes map
-					// make genotype id
-					int precedingGenomicPosition = interval.getStart()
-							+ (pileupIndex - 1);
-					byte[] ref = new byte[] { referenceBases[pileupIndex - 1] };
-					byte[] alt = new byte[operatorLength + 1];
-					alt[0] = ref[0];
-					System.arraycopy(readBases, readIndex, alt, 1,
-							operatorLength);
-					// copy(readBases, readIndex - 1,
-					// readIndex + operatorLength);
-					GenotypeID genotypeID = new GenotypeID(
-							GenotypeEventType.INSERTION, interval.getContig(),
-							precedingGenomicPosition, ref, alt);
-					// add
-					// addGenotype(genotypeID, fragmentName);
-					mappedRead.addGenotype(genotypeID);
-				}
+	/**
+	 * add the bases of a match/mismatch element starting at pileupIndex and
+	 * readIndex. Only the bases on valid positions are looked at.
+	 * 
+	 * @param length
+	 * @param mappedRead
+	 */
+	private void addMatchMismatch(int length, MappedRead mappedRead)
+	{
+		int from = Math.max(0, validPileupStart - pileupIndex);
+		int to = Math.min(length, lastValidPositionIndex + 1 - pileupIndex);
+		if (from >= to)
+		{
+			return;
+		}
 
-				// increment readIndex but not PileupIndex
-				readIndex += operatorLength;
-			}
-			else if (operator.equals(CigarOperator.DELETION))
+		// the unrolled match-mismatch record
+		MatchMismatchRecord matchMismatchRecord = null;
+		if (mappedRead != null)
+		{
+			matchMismatchRecord = new MatchMismatchRecord(interval.getContig(),
+					interval.getStart() + pileupIndex + from, length);
+		}
+
+		for (int j = from; j < to; j++)
+		{
+			byte base = readBases[readIndex + j];
+			if (matchMismatchRecord != null)
 			{
-				// add deletion to the genotypes
-				if (pileupIndex > validPileupStart
-						&& pileupIndex <= lastValidPositionIndex)
-				{
-					// make genotype id
-					int precedingGenomicPosition = interval.getStart()
-							+ (pileupIndex - 1);
-					byte[] alt = new byte[] { referenceBases[pileupIndex - 1] };
-					byte[] ref = referenceFasta
-							.getSubsequenceAt(interval.getContig(),
-									precedingGenomicPosition,
-									precedingGenomicPosition + operatorLength)
-							.getBases();
-					// byte[] ref = Arrays.copyOfRange(referenceBases,
-					// pileupIndex - 1, pileupIndex + operatorLength);
+				matchMismatchRecord.add(referenceBases[pileupIndex + j], base);
+			}
 
-					GenotypeID genotypeID = new GenotypeID(
-							GenotypeEventType.DELETION, interval.getContig(),
-							precedingGenomicPosition, ref, alt);
-					// add
-					// addGenotype(genotypeID, fragmentName);
-					mappedRead.addGenotype(genotypeID);
-				}
+			columns.addBase(pileupIndex + j - windowStart, (char) base,
+					fragmentId, readPairMismatchPolicy);
+		}
 
-				// add deletions to the pileup
-				for (int j = 0; j < operatorLength; j++)
-				{
-					if (pileupIndex >= validPileupStart
-							&& pileupIndex <= lastValidPositionIndex)
-					{
-						positions[pileupIndex].addBase('D', fragmentName,
-								readPairMismatchPolicy);
-
-						if (!duplicate)
-						{
-							positionsWithoutDuplicates[pileupIndex].addBase('D',
-									fragmentName, readPairMismatchPolicy);
-						}
-					}
+		if (matchMismatchRecord != null)
+		{
+			matchMismatchRecord.recordSubstitutions(mappedRead);
+		}
+	}
 
-					// increment pileupIndex but don't increment readIndex
-					pileupIndex++;
-				}
-			}
-			else if (operator.equals(CigarOperator.SOFT_CLIP))
-			{
-				// soft clips do not count in alignment length, no change in
-				// pileupIndex
+	/**
+	 * add an insertion element before pileupIndex, with its bases starting at
+	 * readIndex
+	 * 
+	 * @param length
+	 * @param mappedRead
+	 */
+	private void addInsertion(int length, MappedRead mappedRead)
+	{
+		if (pileupIndex <= 0 || pileupIndex < validPileupStart
+				|| pileupIndex > lastValidPositionIndex)
+		{
+			return;
+		}
 
-				// soft clip at the beginning of alignment
-				if (i == 0)
-				{
-					addClip(operatorLength, pileupIndex,
-							baseQualities[operatorLength], true, false);
-				}
-				else
-				{
-					// soft clip at the end of the alignment
-					addClip(operatorLength, pileupIndex - 1,
-							baseQualities[baseQualities.length - operatorLength
-									- 1],
-							false, false);
-				}
+		columns.addInsertion(pileupIndex - windowStart);
+		if (!duplicate)
+		{
+			columnsWithoutDuplicates.addInsertion(pileupIndex - windowStart);
+		}
 
-				// but increment the read index
-				readIndex += e.getLength();
-			}
-			else if (operator.equals(CigarOperator.HARD_CLIP))
-			{
-				// hard clips do not count in alignment length, nor are the
-				// clipped bases included in the read sequence
-				// so no change in either pileupIndex or readIndex
+		// add insertion to special genotypes map
+		if (mappedRead != null)
+		{
+			// make genotype id
+			int precedingGenomicPosition = interval.getStart()
+					+ (pileupIndex - 1);
+			byte[] ref = new byte[] { referenceBases[pileupIndex - 1] };
+			byte[] alt = new byte[length + 1];
+			alt[0] = ref[0];
+			System.arraycopy(readBases, readIndex, alt, 1, length);
+			GenotypeID genotypeID = new GenotypeID(GenotypeEventType.INSERTION,
+					interval.getContig(), precedingGenomicPosition, ref, alt);
+			mappedRead.addGenotype(genotypeID);
+		}
+	}
 
-				// hard clip at the beginning of alignment
-				if (i == 0)
-				{
-					addClip(operatorLength, pileupIndex, baseQualities[0], true,
-							true);
-				}
-				else
-				{
-					// hard clip at the end of the alignment
-					addClip(operatorLength, pileupIndex - 1,
-							baseQualities[baseQualities.length - 1], false,
-							true);
-				}
+	/**
+	 * add a deletion element starting at pileupIndex
+	 * 
+	 * @param length
+	 * @param mappedRead
+	 */
+	private void addDeletion(int length, MappedRead mappedRead)
+	{
+		// add deletion to the genotypes
+		if (mappedRead != null && pileupIndex > 0
+				&& pileupIndex >= validPileupStart
+				&& pileupIndex <= lastValidPositionIndex)
+		{
+			// make genotype id
+			int precedingGenomicPosition = interval.getStart()
+					+ (pileupIndex - 1);
+			byte[] alt = new byte[] { referenceBases[pileupIndex - 1] };
+			byte[] ref = null;
+			if (pileupIndex + length <= paddedReferenceBases.length)
+			{
+				ref = Arrays.copyOfRange(paddedReferenceBases,
+						pileupIndex - 1, pileupIndex + length);
 			}
 			else
 			{
-				// increment both pileupIndex and readIndex properly
-				pileupIndex += operatorLength;
-				readIndex += operatorLength;
+				// deletion goes past the padding
+				ref = referenceFasta.getSubsequenceAt(interval.getContig(),
+						precedingGenomicPosition,
+						precedingGenomicPosition + length).getBases();
 			}
+
+			GenotypeID genotypeID = new GenotypeID(GenotypeEventType.DELETION,
+					interval.getContig(), precedingGenomicPosition, ref, alt);
+			mappedRead.addGenotype(genotypeID);
 		}
 
+		// add deletions to the pileup, on the valid positions
+		int from = Math.max(pileupIndex, validPileupStart);
+		int to = Math.min(pileupIndex + length, lastValidPositionIndex + 1);
+		for (int j = from; j < to; j++)
+		{
+			columns.addBase(j - windowStart, 'D', fragmentId,
+					readPairMismatchPolicy);
+		}
 	}
 
 	private void recordAndAdjustSpanDummy(SAMRecord record)
 	{
-		Fragment fragmentSpan = fragments.get(record.getReadName());
-		if (fragmentSpan == null)
-		{
-			fragmentSpan = new Fragment(record.getDuplicateReadFlag());
-			fragments.put(record.getReadName(), fragmentSpan);
-		}
+		Fragment fragmentSpan = getFragment(record.getReadName(),
+				record.getDuplicateReadFlag());
 
 		MappedRead recordSpan = fragmentSpan.add(record);
 
@@ -390,23 +755,59 @@ public class RegionPileup
 		pileupIndex = record.getAlignmentStart() - interval.getStart();
 	}
 
-	private MappedRead addToFragment(SAMRecord record)
+	/**
+	 * find the fragment with the given name, adding it to the fragment
+	 * dictionary if this is the first time it is seen. Sets fragmentId.
+	 * Returns null when processing in chunks.
+	 * 
+	 * @param fragmentName
+	 * @param duplicate
+	 * @return
+	 */
+	private Fragment getFragment(String fragmentName, boolean duplicate)
 	{
-		Fragment fragment = fragments.get(record.getReadName());
-		if (fragment == null)
+		fragmentId = fragmentIds.get(fragmentName);
+		if (fragmentId == fragmentIds.getNoEntryValue())
 		{
-			fragment = new Fragment(duplicate);
-			fragments.put(record.getReadName(), fragment);
+			fragmentId = fragmentCount++;
+			if (duplicate)
+			{
+				duplicateFragments.set(fragmentId);
+			}
+			else
+			{
+				uniqueFragmentCount++;
+			}
+
+			fragmentIds.put(fragmentName, fragmentId);
+
+			// fragment-level info is not kept when processing in chunks
+			if (chunkProcessor == null)
+			{
+				fragments.add(new Fragment(duplicate));
+			}
 		}
 
-		MappedRead mappedRead = fragment.add(record);
+		return chunkProcessor == null ? fragments.get(fragmentId) : null;
+	}
+
+	private MappedRead addToFragment(SAMRecord record)
+	{
+		Fragment fragment = getFragment(record.getReadName(), duplicate);
 
 		// don't remove the already processed part, we need to process it again
-		// and tally. Set proper pileupIndex
-		validPileupStart = 0;
+		// and tally. Set proper pileupIndex. Positions already handed over
+		// can't be changed.
+		validPileupStart = firstPositionIndex;
 		pileupIndex = record.getAlignmentStart() - interval.getStart();
 
-		return mappedRead;
+		if (fragment == null)
+		{
+			rememberFragment(record);
+			return null;
+		}
+
+		return fragment.add(record);
 
 		// // this code removes the already processed part properly
 		// // current record is fully contained in previous records
@@ -429,23 +830,46 @@ public class RegionPileup
 
 	}
 
+	/**
+	 * keep the fragment of the record in the dictionary until the records
+	 * move past the start of its mate
+	 * 
+	 * @param record
+	 */
+	private void rememberFragment(SAMRecord record)
+	{
+		int lastStart = record.getAlignmentStart();
+		if (record.getReadPairedFlag() && !record.getMateUnmappedFlag()
+				&& record.getMateReferenceIndex()
+						.equals(record.getReferenceIndex())
+				&& record.getMateAlignmentStart() > lastStart)
+		{
+			lastStart = record.getMateAlignmentStart();
+		}
+
+		if (fragmentLastStarts.get(fragmentId) < lastStart)
+		{
+			fragmentLastStarts.put(fragmentId, lastStart);
+		}
+	}
+
 	/**
 	 * 
 	 * @param genotypeID
 	 * 
 	 *            Add fragment to appropriate genotype
 	 */
-	private void addGenotype(GenotypeID genotypeID, String fragmentName)
+	private void addGenotype(GenotypeID genotypeID, int fragmentId)
 	{
-		Set<String> fragments = genotypes.get(genotypeID);
+		BitSet fragments = genotypes.get(genotypeID);
 
 		if (fragments == null)
 		{
-			fragments = new HashSet<String>();
+			fragments = new BitSet();
 			genotypes.put(genotypeID, fragments);
 		}
 
-		fragments.add(fragmentName);
+		fragments.set(fragmentId);
 	}
 
 	private void addClip(int length, int pileupIndex, byte baseQuality,
@@ -453,16 +877,15 @@ public class RegionPileup
 	{
 		if (before)
 		{
-			// TODO replace this boundary check with proper tracking of
-			// CIGAR and quitting when it goes out of the region
-
-			if (pileupIndex >= 0 && pileupIndex <= lastValidPositionIndex)
+			if (pileupIndex >= validPileupStart
+					&& pileupIndex <= lastValidPositionIndex)
 			{
-				positions[pileupIndex].addClipEnd(baseQuality, hard);
+				columns.addClipEnd(pileupIndex - windowStart, baseQuality,
+						hard);
 				if (!duplicate)
 				{
-					positionsWithoutDuplicates[pileupIndex]
-							.addClipEnd(baseQuality, hard);
+					columnsWithoutDuplicates.addClipEnd(
+							pileupIndex - windowStart, baseQuality, hard);
 				}
 			}
 
@@ -471,13 +894,15 @@ public class RegionPileup
 		}
 		else
 		{
-			if (pileupIndex >= 0 && pileupIndex <= lastValidPositionIndex)
+			if (pileupIndex >= validPileupStart
+					&& pileupIndex <= lastValidPositionIndex)
 			{
-				positions[pileupIndex].addClipStart(baseQuality, hard);
+				columns.addClipStart(pileupIndex - windowStart, baseQuality,
+						hard);
 				if (!duplicate)
 				{
-					positionsWithoutDuplicates[pileupIndex]
-							.addClipStart(baseQuality, hard);
+					columnsWithoutDuplicates.addClipStart(
+							pileupIndex - windowStart, baseQuality, hard);
 				}
 			}
 
@@ -485,17 +910,16 @@ public class RegionPileup
 			pileupIndex++;
 		}
 
-		// add clipping info to positions
-		for (int j = 0; j < length && pileupIndex >= 0
-				&& pileupIndex <= lastValidPositionIndex; j++)
+		// add clipping info to the clipped positions that are valid
+		int from = Math.max(pileupIndex, validPileupStart);
+		int to = Math.min(pileupIndex + length, lastValidPositionIndex + 1);
+		for (int j = from; j < to; j++)
 		{
-			positions[pileupIndex].addClip(hard);
+			columns.addClip(j - windowStart, hard);
 			if (!duplicate)
 			{
-				positionsWithoutDuplicates[pileupIndex].addClip(hard);
+				columnsWithoutDuplicates.addClip(j - windowStart, hard);
 			}
-
-			pileupIndex++;
 		}
 	}
 
@@ -557,19 +981,17 @@ public class RegionPileup
 
 	public void giveViewTo(PileupProcessor processor)
 	{
-		// finalize the base counts
-		for (int i = 0; i <= lastValidPositionIndex; i++)
-		{
-			positions[i].computeCounts();
-			positionsWithoutDuplicates[i].computeCounts();
-		}
+		// base counts, with and without duplicates, from the fragment bases
+		columns.computeCounts(0, lastValidPositionIndex + 1,
+				duplicateFragments, columnsWithoutDuplicates);
 
 		// finalize genotype counts
 		computeGenotypeCounts();
 
 		RegionPileupView view = new RegionPileupView(referenceBases, interval,
 				lastValidPositionIndex, positions, positionsWithoutDuplicates,
-				genotypes, fragments, insertMin, insertMax);
+				columns, columnsWithoutDuplicates, genotypes, fragments,
+				insertMin, insertMax);
 
 		processor.setRegionPileupView(view);
 	}
@@ -584,22 +1006,22 @@ public class RegionPileup
 	{
 		genotypes.clear();
 
-		for (String name : fragments.keySet())
+		for (int id = 0; id < fragments.size(); id++)
 		{
-			Fragment fragment = fragments.get(name);
+			Fragment fragment = fragments.get(id);
 
 			Set<GenotypeID> fragmentGenotypes = fragment
 					.getGenotypes(readPairMismatchPolicy);
 			for (GenotypeID genotypeID : fragmentGenotypes)
 			{
-				Set<String> names = genotypes.get(genotypeID);
-				if (names == null)
+				BitSet ids = genotypes.get(genotypeID);
+				if (ids == null)
 				{
-					names = new HashSet<String>();
-					genotypes.put(genotypeID, names);
+					ids = new BitSet(fragments.size());
+					genotypes.put(genotypeID, ids);
 				}
 
-				names.add(name);
+				ids.set(id);
 			}
 		}
 
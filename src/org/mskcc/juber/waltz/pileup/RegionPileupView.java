@@ -26,8 +26,8 @@
  */
 package org.mskcc.juber.waltz.pileup;
 
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -48,31 +48,49 @@ public class RegionPileupView
 	public final int lastValidPositionIndex;
 	public final PositionPileup[] positions;
 	public final PositionPileup[] positionsWithoutDuplicates;
+	/**
+	 * the counts of the same positions, by column. Index 0 is the first
+	 * position of the interval. The fragment bases of all fragments are in
+	 * columns; columnsWithoutDuplicates has only counts.
+	 */
+	public final PileupColumns columns;
+	public final PileupColumns columnsWithoutDuplicates;
 	/**
 	 * holds special genotypes: multi-base events and insertions
 	 * multi-base substitution not handled yet.
 	 */
-	public final Map<GenotypeID, Set<String>> genotypes;
-	public final Map<String, Fragment> fragmentSpans;
+	public final Map<GenotypeID, BitSet> genotypes;
+	/**
+	 * fragments in this region, indexed by fragment id
+	 */
+	public final List<Fragment> fragmentSpans;
 	public final int insertMin;
 	public final int insertMax;
+	/**
+	 * valid spanning fragments already computed for this region
+	 */
+	private Map<GenotypeID, BitSet> spanningFragmentsCache;
+	private BitSet uniqueFragments;
 
 	public RegionPileupView(byte[] referenceBases, Interval interval,
 			int lastValidPositionIndex, PositionPileup[] positions,
-			PositionPileup[] positionsWithoutDuplicates,
-			Map<GenotypeID, Set<String>> genotypes,
-			Map<String, Fragment> fragmentSpans, int insertMin,
-			int insertMax)
+			PositionPileup[] positionsWithoutDuplicates, PileupColumns columns,
+			PileupColumns columnsWithoutDuplicates,
+			Map<GenotypeID, BitSet> genotypes, List<Fragment> fragmentSpans,
+			int insertMin, int insertMax)
 	{
 		this.referenceBases = referenceBases;
 		this.interval = interval;
 		this.lastValidPositionIndex = lastValidPositionIndex;
 		this.positions = positions;
 		this.positionsWithoutDuplicates = positionsWithoutDuplicates;
+		this.columns = columns;
+		this.columnsWithoutDuplicates = columnsWithoutDuplicates;
 		this.genotypes = genotypes;
 		this.fragmentSpans = fragmentSpans;
 		this.insertMin = insertMin;
 		this.insertMax = insertMax;
+		this.spanningFragmentsCache = new HashMap<GenotypeID, BitSet>();
 	}
 
 	/**
@@ -121,15 +139,28 @@ public class RegionPileupView
 
 	/**
 	 * go through the position pileups and find the fragments that have valid
-	 * coverage (i.e. no N's) over the entire given span
+	 * coverage (i.e. no N's) over the entire given span. The returned set is
+	 * cached and must not be modified.
 	 * 
 	 * 
 	 * @param span
-	 * @return
+	 * @return set of fragment ids
 	 */
-	public Set<String> getValidSpanningFragments(GenotypeID genotypeID)
+	public BitSet getValidSpanningFragments(GenotypeID genotypeID)
 	{
-		Set<String> spanningFragments = new HashSet<String>();
+		BitSet spanningFragments = spanningFragmentsCache.get(genotypeID);
+		if (spanningFragments == null)
+		{
+			spanningFragments = findValidSpanningFragments(genotypeID);
+			spanningFragmentsCache.put(genotypeID, spanningFragments);
+		}
+
+		return spanningFragments;
+	}
+
+	private BitSet findValidSpanningFragments(GenotypeID genotypeID)
+	{
+		BitSet spanningFragments = new BitSet(fragmentSpans.size());
 
 		int startIndex = getIndex(genotypeID.contig, genotypeID.position);
 		int endIndex = getIndex(genotypeID.contig, genotypeID.endPosition);
@@ -140,15 +171,13 @@ public class RegionPileupView
 		}
 
 		// make the fragment set for the first position
-		Map<String, Character> bases = positions[startIndex].getFragmentBases();
-		for (String fragment : bases.keySet())
+		FragmentBases bases = columns.fragmentBases[startIndex];
+		for (int i = 0; i < bases.size(); i++)
 		{
-			Character base = bases.get(fragment);
-
 			// valid base
-			if (base != null && base != PositionPileup.nChar)
+			if (bases.baseAt(i) != PositionPileup.nChar)
 			{
-				spanningFragments.add(fragment);
+				spanningFragments.set(bases.fragmentAt(i));
 			}
 		}
 
@@ -161,16 +190,18 @@ public class RegionPileupView
 				return spanningFragments;
 			}
 
-			bases = positions[i].getFragmentBases();
-			Iterator<String> iterator = spanningFragments.iterator();
-			while (iterator.hasNext())
+			bases = columns.fragmentBases[i];
+			int fragment = spanningFragments.nextSetBit(0);
+			while (fragment >= 0)
 			{
-				String fragment = iterator.next();
-				Character base = bases.get(fragment);
-				if (base == null || base == PositionPileup.nChar)
+				byte base = bases.get(fragment);
+				if (base == FragmentBases.noBase
+						|| base == PositionPileup.nChar)
 				{
-					iterator.remove();
+					spanningFragments.clear(fragment);
 				}
+
+				fragment = spanningFragments.nextSetBit(fragment + 1);
 			}
 		}
 
@@ -178,15 +209,16 @@ public class RegionPileupView
 
 	}
 
-	public Set<String> getValidSpanningFragments(Set<GenotypeID> genotypeIDs)
+	public BitSet getValidSpanningFragments(Set<GenotypeID> genotypeIDs)
 	{
-		Set<String> spanningFragments = null;
+		BitSet spanningFragments = null;
 		for (GenotypeID genotypeID : genotypeIDs)
 		{
 			// first genotypeID
 			if (spanningFragments == null)
 			{
-				spanningFragments = getValidSpanningFragments(genotypeID);
+				spanningFragments = (BitSet) getValidSpanningFragments(
+						genotypeID).clone();
 			}
 			else if (spanningFragments.isEmpty())
 			{
@@ -195,15 +227,14 @@ public class RegionPileupView
 			}
 			else
 			{
-				Set<String> next = getValidSpanningFragments(genotypeID);
 				// do intersection
-				spanningFragments.retainAll(next);
+				spanningFragments.and(getValidSpanningFragments(genotypeID));
 			}
 		}
 
 		if (spanningFragments == null)
 		{
-			return new HashSet<String>();
+			return new BitSet();
 		}
 		else
 		{
@@ -211,4 +242,29 @@ public class RegionPileupView
 		}
 	}
 
+	/**
+	 * 
+	 * @param fragments
+	 *            set of fragment ids
+	 * @return number of the given fragments that are not duplicates
+	 */
+	public int countUnique(BitSet fragments)
+	{
+		if (uniqueFragments == null)
+		{
+			uniqueFragments = new BitSet(fragmentSpans.size());
+			for (int i = 0; i < fragmentSpans.size(); i++)
+			{
+				if (!fragmentSpans.get(i).isDuplicate())
+				{
+					uniqueFragments.set(i);
+				}
+			}
+		}
+
+		BitSet unique = (BitSet) fragments.clone();
+		unique.and(uniqueFragments);
+		return unique.cardinality();
+	}
+
 }
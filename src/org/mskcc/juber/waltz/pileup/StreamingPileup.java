@@ -0,0 +1,232 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.pileup;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import org.mskcc.juber.waltz.WaltzOutput;
+import org.mskcc.juber.waltz.pileup.processors.PileupProcessor;
+
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.reference.IndexedFastaSequenceFile;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Builds the pileups for a sorted list of intervals from a single
+ *         coordinate-sorted stream of records. Each record is added to every
+ *         active interval pileup it overlaps and each pileup is handed to the
+ *         processor as soon as the stream moves past the end of its interval.
+ *         Pileups are reused once they have been processed.
+ * 
+ */
+public class StreamingPileup
+{
+	private IndexedFastaSequenceFile referenceFasta;
+	private SAMSequenceDictionary dictionary;
+	private List<Interval> intervals;
+	private int insertMin;
+	private int insertMax;
+	private int readPairMismatchPolicy;
+	private PileupProcessor processor;
+	private WaltzOutput output;
+	/**
+	 * index of the next interval to become active
+	 */
+	private int nextInterval;
+	/**
+	 * pileups for the active intervals, in interval order
+	 */
+	private Deque<RegionPileup> active;
+	private Deque<RegionPileup> idle;
+
+	/**
+	 * 
+	 * @param referenceFasta
+	 * @param intervalList
+	 *            must be sorted in the order of the records
+	 * @param insertMin
+	 * @param insertMax
+	 * @param readPairMismatchPolicy
+	 * @param processor
+	 * @param output
+	 */
+	public StreamingPileup(IndexedFastaSequenceFile referenceFasta,
+			IntervalList intervalList, int insertMin, int insertMax,
+			int readPairMismatchPolicy, PileupProcessor processor,
+			WaltzOutput output)
+	{
+		this.referenceFasta = referenceFasta;
+		this.dictionary = intervalList.getHeader().getSequenceDictionary();
+		this.intervals = intervalList.getIntervals();
+		this.insertMin = insertMin;
+		this.insertMax = insertMax;
+		this.readPairMismatchPolicy = readPairMismatchPolicy;
+		this.processor = processor;
+		this.output = output;
+		this.active = new ArrayDeque<RegionPileup>();
+		this.idle = new ArrayDeque<RegionPileup>();
+	}
+
+	/**
+	 * add the next record from the stream. Records must come in coordinate
+	 * order.
+	 * 
+	 * @param record
+	 * @throws IOException
+	 */
+	public void add(SAMRecord record) throws IOException
+	{
+		int contigIndex = record.getReferenceIndex();
+		int start = record.getAlignmentStart();
+		int end = record.getAlignmentEnd();
+
+		// process the intervals this record and all the following records
+		// are past
+		finishBefore(contigIndex, start);
+
+		// activate the intervals this record reaches into
+		while (nextInterval < intervals.size())
+		{
+			Interval interval = intervals.get(nextInterval);
+			int intervalContigIndex = dictionary
+					.getSequenceIndex(interval.getContig());
+			if (intervalContigIndex > contigIndex
+					|| (intervalContigIndex == contigIndex
+							&& interval.getStart() > end))
+			{
+				break;
+			}
+
+			RegionPileup pileup = idle.poll();
+			if (pileup == null)
+			{
+				pileup = new RegionPileup(referenceFasta, insertMin,
+						insertMax, readPairMismatchPolicy, processor);
+			}
+
+			pileup.prepFor(interval);
+			active.add(pileup);
+			nextInterval++;
+		}
+
+		// some of the newly activated intervals may already be behind
+		finishBefore(contigIndex, start);
+
+		// only the first active pileup hands over chunks of finalized
+		// positions, so that the output of overlapping intervals is not
+		// interleaved
+		if (!active.isEmpty())
+		{
+			active.peek().flushBefore(start, output);
+		}
+
+		for (RegionPileup pileup : active)
+		{
+			Interval interval = pileup.getInterval();
+			if (interval.getStart() > end || interval.getEnd() < start)
+			{
+				continue;
+			}
+
+			try
+			{
+				pileup.addRecord(record);
+			}
+			catch (Exception e)
+			{
+				System.err.println("Problem processing record:");
+				System.err.println(record.getSAMString());
+				System.err.println("Region: " + interval);
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * process all the remaining intervals. Must be called at the end of the
+	 * stream.
+	 * 
+	 * @throws IOException
+	 */
+	public void finish() throws IOException
+	{
+		finishBefore(Integer.MAX_VALUE, 0);
+
+		// intervals that no record reached
+		while (nextInterval < intervals.size())
+		{
+			RegionPileup pileup = idle.poll();
+			if (pileup == null)
+			{
+				pileup = new RegionPileup(referenceFasta, insertMin,
+						insertMax, readPairMismatchPolicy, processor);
+			}
+
+			pileup.prepFor(intervals.get(nextInterval));
+			active.add(pileup);
+			nextInterval++;
+			finishBefore(Integer.MAX_VALUE, 0);
+		}
+	}
+
+	/**
+	 * process the active intervals, in order, that end before the given
+	 * position
+	 * 
+	 * @param contigIndex
+	 * @param position
+	 * @throws IOException
+	 */
+	private void finishBefore(int contigIndex, int position) throws IOException
+	{
+		while (!active.isEmpty())
+		{
+			RegionPileup pileup = active.peek();
+			Interval interval = pileup.getInterval();
+			int intervalContigIndex = dictionary
+					.getSequenceIndex(interval.getContig());
+			if (intervalContigIndex == contigIndex
+					&& interval.getEnd() >= position)
+			{
+				break;
+			}
+
+			System.out.println(interval);
+
+			active.poll();
+			pileup.process(output);
+			idle.add(pileup);
+		}
+	}
+}
@@ -0,0 +1,334 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.pileup.binary;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Reads a binary pileup file written by BinaryPileupWriter, using its
+ *         index to go directly to the blocks of a contig or a position.
+ * 
+ *         Running this class with a binary pileup file prints it in the text
+ *         pileup format.
+ * 
+ */
+public class BinaryPileupReader
+{
+	private RandomAccessFile file;
+	private Inflater inflater;
+	/**
+	 * blocks in file order
+	 */
+	private List<IndexEntry> entries;
+	private List<String> contigs;
+	/**
+	 * blocks of each contig, sorted by start
+	 */
+	private Map<String, List<IndexEntry>> contigEntries;
+	/**
+	 * length of the longest interval of each contig
+	 */
+	private Map<String, Integer> maxLengths;
+
+	public BinaryPileupReader(File pileupFile) throws IOException
+	{
+		file = new RandomAccessFile(pileupFile, "r");
+		if (file.readInt() != BinaryPileupWriter.magic)
+		{
+			file.close();
+			throw new IOException("Not a binary pileup file: " + pileupFile);
+		}
+
+		int version = file.readInt();
+		if (version != BinaryPileupWriter.version)
+		{
+			file.close();
+			throw new IOException("Unsupported binary pileup version "
+					+ version + ": " + pileupFile);
+		}
+
+		inflater = new Inflater();
+		readIndex(new File(
+				pileupFile.getPath() + BinaryPileupWriter.indexExtension));
+	}
+
+	private void readIndex(File indexFile) throws IOException
+	{
+		entries = new ArrayList<IndexEntry>();
+		contigs = new ArrayList<String>();
+		contigEntries = new HashMap<String, List<IndexEntry>>();
+		maxLengths = new HashMap<String, Integer>();
+
+		BufferedReader reader = new BufferedReader(new FileReader(indexFile));
+		String line = null;
+		while ((line = reader.readLine()) != null)
+		{
+			String[] parts = line.split("\t");
+			IndexEntry entry = new IndexEntry(parts[0],
+					Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+					Long.parseLong(parts[3]), Integer.parseInt(parts[4]));
+			entries.add(entry);
+
+			List<IndexEntry> list = contigEntries.get(entry.contig);
+			if (list == null)
+			{
+				list = new ArrayList<IndexEntry>();
+				contigEntries.put(entry.contig, list);
+				contigs.add(entry.contig);
+				maxLengths.put(entry.contig, 0);
+			}
+
+			list.add(entry);
+			int length = entry.end - entry.start + 1;
+			if (length > maxLengths.get(entry.contig))
+			{
+				maxLengths.put(entry.contig, length);
+			}
+		}
+
+		reader.close();
+
+		Comparator<IndexEntry> byStart = new Comparator<IndexEntry>()
+		{
+			@Override
+			public int compare(IndexEntry arg0, IndexEntry arg1)
+			{
+				return Integer.compare(arg0.start, arg1.start);
+			}
+		};
+
+		for (List<IndexEntry> list : contigEntries.values())
+		{
+			Collections.sort(list, byStart);
+		}
+	}
+
+	/**
+	 * 
+	 * @return contigs in the order they appear in the file
+	 */
+	public List<String> getContigs()
+	{
+		return contigs;
+	}
+
+	/**
+	 * 
+	 * @return number of blocks in the file
+	 */
+	public int getBlockCount()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * 
+	 * @param i
+	 * @return the i-th block in file order
+	 * @throws IOException
+	 */
+	public PileupBlock getBlock(int i) throws IOException
+	{
+		return readBlock(entries.get(i));
+	}
+
+	/**
+	 * 
+	 * @param contig
+	 * @return number of blocks of the given contig
+	 */
+	public int getBlockCount(String contig)
+	{
+		List<IndexEntry> list = contigEntries.get(contig);
+		return list == null ? 0 : list.size();
+	}
+
+	/**
+	 * 
+	 * @param contig
+	 * @param i
+	 * @return the i-th block of the given contig, in start order
+	 * @throws IOException
+	 */
+	public PileupBlock getBlock(String contig, int i) throws IOException
+	{
+		return readBlock(contigEntries.get(contig).get(i));
+	}
+
+	/**
+	 * 
+	 * @param contig
+	 * @param position
+	 * @return a block that has the given position, or null if there is none
+	 * @throws IOException
+	 */
+	public PileupBlock findBlock(String contig, int position)
+			throws IOException
+	{
+		List<IndexEntry> list = contigEntries.get(contig);
+		if (list == null)
+		{
+			return null;
+		}
+
+		// last block starting at or before the position
+		int low = 0;
+		int high = list.size() - 1;
+		while (low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			if (list.get(middle).start <= position)
+			{
+				low = middle + 1;
+			}
+			else
+			{
+				high = middle - 1;
+			}
+		}
+
+		// go back over the blocks that may still reach the position
+		int maxLength = maxLengths.get(contig);
+		for (int i = high; i >= 0
+				&& list.get(i).start + maxLength > position; i--)
+		{
+			if (list.get(i).end >= position)
+			{
+				return readBlock(list.get(i));
+			}
+		}
+
+		return null;
+	}
+
+	private PileupBlock readBlock(IndexEntry entry) throws IOException
+	{
+		byte[] block = new byte[entry.size];
+		file.seek(entry.offset);
+		file.readFully(block);
+
+		ByteBuffer header = ByteBuffer.wrap(block, 0, 8);
+		int payloadSize = header.getInt();
+		int compressedSize = header.getInt();
+		byte[] payload = new byte[payloadSize];
+		inflater.reset();
+		inflater.setInput(block, 8, compressedSize);
+		try
+		{
+			int inflated = inflater.inflate(payload);
+			if (inflated != payloadSize)
+			{
+				throw new IOException("Truncated pileup block at offset "
+						+ entry.offset);
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException(
+					"Corrupt pileup block at offset " + entry.offset, e);
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(payload);
+		int length = buffer.getInt();
+		byte[] refBases = new byte[length];
+		buffer.get(refBases);
+		int[][] columns = new int[PileupColumn.values().length][length];
+		for (int[] column : columns)
+		{
+			buffer.asIntBuffer().get(column);
+			buffer.position(buffer.position() + 4 * length);
+		}
+
+		return new PileupBlock(entry.contig, entry.start, entry.end,
+				refBases, columns);
+	}
+
+	public void close() throws IOException
+	{
+		inflater.end();
+		file.close();
+	}
+
+	private class IndexEntry
+	{
+		public final String contig;
+		public final int start;
+		public final int end;
+		public final long offset;
+		public final int size;
+
+		public IndexEntry(String contig, int start, int end, long offset,
+				int size)
+		{
+			this.contig = contig;
+			this.start = start;
+			this.end = end;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * print the given binary pileup file in the text pileup format
+	 * 
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		BinaryPileupReader reader = new BinaryPileupReader(new File(args[0]));
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < reader.getBlockCount(); i++)
+		{
+			PileupBlock block = reader.getBlock(i);
+			for (int j = 0; j < block.length(); j++)
+			{
+				builder.append(block.toPileupLine(j)).append('\n');
+			}
+
+			System.out.print(builder);
+			builder.setLength(0);
+		}
+
+		reader.close();
+	}
+}
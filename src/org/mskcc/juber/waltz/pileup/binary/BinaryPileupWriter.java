@@ -0,0 +1,98 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.pileup.binary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.mskcc.juber.waltz.AsyncFileWriter;
+
+import htsjdk.samtools.util.Interval;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Writes binary pileup blocks (see PileupBlockEncoder) to a file and
+ *         their locations to an index file next to it. Each index line has
+ *         contig, interval start, interval end, block offset and block size.
+ * 
+ */
+public class BinaryPileupWriter
+{
+	public static final String indexExtension = ".idx";
+	/**
+	 * "WZPB" followed by the format version
+	 */
+	public static final int magic = 0x575A5042;
+	public static final int version = 1;
+	public static final int headerSize = 8;
+
+	private AsyncFileWriter blocks;
+	private AsyncFileWriter index;
+	private long offset;
+
+	public BinaryPileupWriter(String fileName) throws IOException
+	{
+		blocks = new AsyncFileWriter(fileName);
+		index = new AsyncFileWriter(fileName + indexExtension);
+
+		ByteBuffer header = ByteBuffer.allocate(headerSize);
+		header.putInt(magic);
+		header.putInt(version);
+		blocks.write(header.array());
+		offset = headerSize;
+	}
+
+	/**
+	 * 
+	 * @param interval
+	 * @param block
+	 *            encoded pileup block of the interval
+	 * @throws IOException
+	 */
+	public synchronized void write(Interval interval, byte[] block)
+			throws IOException
+	{
+		blocks.write(block);
+		index.write(interval.getContig() + "\t" + interval.getStart() + "\t"
+				+ interval.getEnd() + "\t" + offset + "\t" + block.length
+				+ "\n");
+		offset += block.length;
+	}
+
+	public void close() throws IOException
+	{
+		try
+		{
+			blocks.close();
+		}
+		finally
+		{
+			index.close();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.pileup.binary;
+
+/**
+ * @author Juber Patel
+ * 
+ *         A decoded binary pileup block: the counts of each position of one
+ *         interval, stored column by column
+ * 
+ */
+public class PileupBlock
+{
+	public final String contig;
+	public final int start;
+	public final int end;
+	private byte[] refBases;
+	/**
+	 * one array per PileupColumn
+	 */
+	private int[][] columns;
+
+	public PileupBlock(String contig, int start, int end, byte[] refBases,
+			int[][] columns)
+	{
+		this.contig = contig;
+		this.start = start;
+		this.end = end;
+		this.refBases = refBases;
+		this.columns = columns;
+	}
+
+	/**
+	 * 
+	 * @return number of positions in this block
+	 */
+	public int length()
+	{
+		return refBases.length;
+	}
+
+	/**
+	 * 
+	 * @param position
+	 *            genomic position
+	 * @return true if this block has the given position
+	 */
+	public boolean contains(int position)
+	{
+		return position >= start && position < start + refBases.length;
+	}
+
+	/**
+	 * 
+	 * @param index
+	 *            0-based index of the position in this block
+	 * @return
+	 */
+	public byte getRefBase(int index)
+	{
+		return refBases[index];
+	}
+
+	/**
+	 * 
+	 * @param column
+	 * @param index
+	 *            0-based index of the position in this block
+	 * @return
+	 */
+	public int getCount(PileupColumn column, int index)
+	{
+		return columns[column.ordinal()][index];
+	}
+
+	/**
+	 * 
+	 * @param column
+	 * @return the whole column, must not be modified
+	 */
+	public int[] getColumn(PileupColumn column)
+	{
+		return columns[column.ordinal()];
+	}
+
+	/**
+	 * 
+	 * @param index
+	 *            0-based index of the position in this block
+	 * @return depth including N's, same as the depth column of the text
+	 *         pileup
+	 */
+	public int getDepth(int index)
+	{
+		return columns[PileupColumn.A.ordinal()][index]
+				+ columns[PileupColumn.C.ordinal()][index]
+				+ columns[PileupColumn.G.ordinal()][index]
+				+ columns[PileupColumn.T.ordinal()][index]
+				+ columns[PileupColumn.DELETIONS.ordinal()][index]
+				+ columns[PileupColumn.N.ordinal()][index];
+	}
+
+	/**
+	 * 
+	 * @param index
+	 *            0-based index of the position in this block
+	 * @return the position as a line of the text pileup
+	 */
+	public String toPileupLine(int index)
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append(contig).append('\t');
+		builder.append(start + index).append('\t');
+		builder.append((char) refBases[index]).append('\t');
+		builder.append(getDepth(index));
+		for (PileupColumn column : PileupColumn.values())
+		{
+			if (column != PileupColumn.N)
+			{
+				builder.append('\t').append(getCount(column, index));
+			}
+		}
+
+		return builder.toString();
+	}
+}
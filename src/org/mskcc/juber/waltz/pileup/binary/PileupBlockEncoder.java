@@ -0,0 +1,151 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.pileup.binary;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.mskcc.juber.waltz.pileup.PileupColumns;
+
+/**
+ * @author Juber Patel
+ * 
+ *         Encodes the position pileups of an interval as a binary pileup
+ *         block. The column buffers and the deflater are reused from one
+ *         interval to the next, so the only allocation per interval is the
+ *         returned block.
+ * 
+ *         Block layout: int uncompressed size, int compressed size, then the
+ *         deflated payload. The payload has int number of positions, the
+ *         reference base of each position and then each PileupColumn as an
+ *         int per position. All ints are big-endian.
+ * 
+ */
+public class PileupBlockEncoder
+{
+	private static final PileupColumn[] columns = PileupColumn.values();
+
+	private ByteBuffer payload;
+	private byte[] compressed;
+	private Deflater deflater;
+
+	public PileupBlockEncoder()
+	{
+		payload = ByteBuffer.allocate(0);
+		compressed = new byte[0];
+		deflater = new Deflater(Deflater.BEST_SPEED);
+	}
+
+	/**
+	 * 
+	 * @param pileupColumns
+	 * @param length
+	 *            number of positions to encode, starting at index 0
+	 * @return the encoded block
+	 */
+	public byte[] encode(PileupColumns pileupColumns, int length)
+	{
+		int payloadSize = 4 + length + (4 * length * columns.length);
+		if (payload.capacity() < payloadSize)
+		{
+			payload = ByteBuffer.allocate(payloadSize);
+		}
+
+		payload.clear();
+		payload.putInt(length);
+		payload.put(pileupColumns.refBases, 0, length);
+
+		// each column is copied in bulk, through an int view of the payload
+		for (PileupColumn column : columns)
+		{
+			payload.asIntBuffer().put(getCounts(pileupColumns, column), 0,
+					length);
+			payload.position(payload.position() + 4 * length);
+		}
+
+		// compress
+		deflater.reset();
+		deflater.setInput(payload.array(), 0, payloadSize);
+		deflater.finish();
+		int bound = payloadSize + (payloadSize >> 12) + 64;
+		if (compressed.length < bound)
+		{
+			compressed = new byte[bound];
+		}
+
+		int compressedSize = 0;
+		while (!deflater.finished())
+		{
+			if (compressedSize == compressed.length)
+			{
+				compressed = Arrays.copyOf(compressed, compressed.length * 2);
+			}
+
+			compressedSize += deflater.deflate(compressed, compressedSize,
+					compressed.length - compressedSize);
+		}
+
+		ByteBuffer block = ByteBuffer.allocate(8 + compressedSize);
+		block.putInt(payloadSize);
+		block.putInt(compressedSize);
+		block.put(compressed, 0, compressedSize);
+		return block.array();
+	}
+
+	private int[] getCounts(PileupColumns pileupColumns, PileupColumn column)
+	{
+		switch (column)
+		{
+			case A:
+				return pileupColumns.aCounts;
+			case C:
+				return pileupColumns.cCounts;
+			case G:
+				return pileupColumns.gCounts;
+			case T:
+				return pileupColumns.tCounts;
+			case N:
+				return pileupColumns.nCounts;
+			case INSERTIONS:
+				return pileupColumns.insertions;
+			case DELETIONS:
+				return pileupColumns.deletions;
+			case SOFT_CLIP_STARTS:
+				return pileupColumns.softClipStarts;
+			case SOFT_CLIP_ENDS:
+				return pileupColumns.softClipEnds;
+			case HARD_CLIP_STARTS:
+				return pileupColumns.hardClipStarts;
+			case HARD_CLIP_ENDS:
+				return pileupColumns.hardClipEnds;
+			default:
+				throw new IllegalArgumentException(
+						"Unknown pileup column: " + column);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ *
+ * @author Juber Patel
+ *
+ *         Copyright (c) 2017 Innovation Lab, CMO, MSKCC.
+ *
+ *         This software was developed at the Innovation Lab, Center for
+ *         Molecular Oncology,
+ *         Memorial Sloan Kettering Cancer Center, New York, New York.
+ *
+ *         Licensed under the Apache License, Version 2.0 (the "License");
+ *         you may not use this file except in compliance with the License.
+ *         You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *         Unless required by applicable law or agreed to in writing, software
+ *         distributed under the License is distributed on an "AS IS" BASIS,
+ *         WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ *         implied.
+ *         See the License for the specific language governing permissions and
+ *         limitations under the License.
+ *******************************************************************************/
+/**
+ * 
+ */
+package org.mskcc.juber.waltz.pileup.processors;
+
+import java.io.IOException;
+
+import org.mskcc.juber.waltz.WaltzOutput;
+import org.mskcc.juber.waltz.pileup.RegionPileupView;
+
+import htsjdk.samtools.util.Interval;
+
+/**
+ * @author Juber Patel
+ * 
+ *         A processor that takes the pileup of an interval as consecutive
+ *         chunks of finalized positions, so that the interval never has to be
+ *         piled up whole. RegionPileup hands the chunks over as the records
+ *         move past them. The fragment-level parts of the view (genotypes,
+ *         fragments) are not filled in for chunks.
+ * 
+ */
+public interface ChunkedPileupProcessor extends PileupProcessor
+{
+	/**
+	 * start a new interval. Its chunks follow, in order.
+	 * 
+	 * @param interval
+	 */
+	public void startInterval(Interval interval);
+
+	/**
+	 * process the next chunk of the current interval. The interval of the
+	 * view is the part of the interval the chunk covers.
+	 * 
+	 * @param chunk
+	 * @param output
+	 * @throws IOException
+	 */
+	public void processChunk(RegionPileupView chunk, WaltzOutput output)
+			throws IOException;
+
+	/**
+	 * all the chunks of the current interval have been processed
+	 * 
+	 * @param fragments
+	 *            number of fragments mapped to the interval
+	 * @param uniqueFragments
+	 *            number of those that are not duplicates
+	 * @param output
+	 * @throws IOException
+	 */
+	public void finishInterval(int fragments, int uniqueFragments,
+			WaltzOutput output) throws IOException;
+}
@@ -27,8 +27,10 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -48,18 +50,29 @@ import org.mskcc.juber.waltz.pileup.MappedRead;
 import org.mskcc.juber.waltz.pileup.Fragment;
 import org.mskcc.juber.waltz.pileup.RegionPileupView;
 
-import com.google.common.collect.Sets;
-
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
 import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.StringUtil;
 
 public class GenotypingProcessor implements PileupProcessor
 {
+	/**
+	 * maximum number of genotypes in a region that are combined into composite
+	 * genotypes
+	 */
+	private static final int maxCompositeGenotypes = 5;
 	private RegionPileupView pileup;
 	private PileupMetricsProcessor metricsProcessor;
 	private Set<GenotypeIDWithMafLine> genotypeIDsWithMafLine;
-	private Comparator<Entry<GenotypeIDWithMafLine, Set<String>>> fragmentCountComparator;
+	/**
+	 * genotypes on each contig, sorted by start position
+	 */
+	private Map<String, GenotypeIDWithMafLine[]> genotypesByContig;
+	/**
+	 * start positions of the genotypes in genotypesByContig
+	 */
+	private Map<String, int[]> genotypeStartsByContig;
+	private Comparator<Entry<GenotypeIDWithMafLine, BitSet>> fragmentCountComparator;
 	private String mafHeader;
 	private Map<String, Integer> mafColumns;
 	private IndexedFastaSequenceFile referenceFasta;
@@ -118,34 +131,116 @@ public class GenotypingProcessor implements PileupProcessor
 
 		reader.close();
 
+		indexGenotypes();
+
 		// create fragment count comparator
-		fragmentCountComparator = new Comparator<Entry<GenotypeIDWithMafLine, Set<String>>>()
+		fragmentCountComparator = new Comparator<Entry<GenotypeIDWithMafLine, BitSet>>()
 		{
 
 			@Override
-			public int compare(Entry<GenotypeIDWithMafLine, Set<String>> arg0,
-					Entry<GenotypeIDWithMafLine, Set<String>> arg1)
+			public int compare(Entry<GenotypeIDWithMafLine, BitSet> arg0,
+					Entry<GenotypeIDWithMafLine, BitSet> arg1)
 			{
-				return arg1.getValue().size() - arg0.getValue().size();
+				return arg1.getValue().cardinality()
+						- arg0.getValue().cardinality();
 			}
 		};
 	}
 
-	private void processMafHeader(String header)
+	/**
+	 * index the genotypes by contig and start position so that each region
+	 * can find its genotypes without scanning all of them
+	 */
+	private void indexGenotypes()
 	{
-		mafColumns = new LinkedHashMap<String, Integer>();
+		Map<String, List<GenotypeIDWithMafLine>> lists = new HashMap<String, List<GenotypeIDWithMafLine>>();
+		for (GenotypeIDWithMafLine genotypeIDWithMafLine : genotypeIDsWithMafLine)
+		{
+			String contig = genotypeIDWithMafLine.genotypeID.contig;
+			List<GenotypeIDWithMafLine> list = lists.get(contig);
+			if (list == null)
+			{
+				list = new ArrayList<GenotypeIDWithMafLine>();
+				lists.put(contig, list);
+			}
 
+			list.add(genotypeIDWithMafLine);
+		}
+
+		Comparator<GenotypeIDWithMafLine> byStart = new Comparator<GenotypeIDWithMafLine>()
+		{
+			@Override
+			public int compare(GenotypeIDWithMafLine arg0,
+					GenotypeIDWithMafLine arg1)
+			{
+				return Integer.compare(arg0.genotypeID.position,
+						arg1.genotypeID.position);
+			}
+		};
+
+		genotypesByContig = new HashMap<String, GenotypeIDWithMafLine[]>();
+		genotypeStartsByContig = new HashMap<String, int[]>();
+		for (String contig : lists.keySet())
+		{
+			List<GenotypeIDWithMafLine> list = lists.get(contig);
+			Collections.sort(list, byStart);
+
+			GenotypeIDWithMafLine[] genotypes = list
+					.toArray(new GenotypeIDWithMafLine[list.size()]);
+			int[] starts = new int[genotypes.length];
+			for (int i = 0; i < genotypes.length; i++)
+			{
+				starts[i] = genotypes[i].genotypeID.position;
+			}
+
+			genotypesByContig.put(contig, genotypes);
+			genotypeStartsByContig.put(contig, starts);
+		}
+	}
+
+	/**
+	 * make a processor that shares the parsed genotypes with the given
+	 * processor
+	 * 
+	 * @param other
+	 */
+	private GenotypingProcessor(GenotypingProcessor other)
+	{
+		this.referenceFasta = other.referenceFasta;
+		this.genotypeIDsWithMafLine = other.genotypeIDsWithMafLine;
+		this.genotypesByContig = other.genotypesByContig;
+		this.genotypeStartsByContig = other.genotypeStartsByContig;
+		this.fragmentCountComparator = other.fragmentCountComparator;
+		this.mafHeader = other.mafHeader;
+		this.mafColumns = other.mafColumns;
+	}
+
+	private void processMafHeader(String header)
+	{
 		// Add Waltz fields
 		mafHeader = header + "\tWaltz_total_t_depth"
 				+ "\tWaltz_total_t_alt_count" + "\tWaltz_MD_t_depth"
 				+ "\tWaltz_MD_t_alt_count";
 
+		mafColumns = getMafColumns(mafHeader);
+	}
+
+	/**
+	 * 
+	 * @param mafHeader
+	 * @return column index by column name, in column order
+	 */
+	public static Map<String, Integer> getMafColumns(String mafHeader)
+	{
+		Map<String, Integer> mafColumns = new LinkedHashMap<String, Integer>();
 		String[] parts = mafHeader.split("\t");
 
 		for (int i = 0; i < parts.length; i++)
 		{
 			mafColumns.put(parts[i], i);
 		}
+
+		return mafColumns;
 	}
 
 	public String getMafHeader()
@@ -338,23 +433,44 @@ public class GenotypingProcessor implements PileupProcessor
 		this.pileup = null;
 	}
 
+	@Override
+	public PileupProcessor copy()
+	{
+		return new GenotypingProcessor(this);
+	}
+
 	private void processGenotypes(WaltzOutput output) throws IOException
 	{
 		Set<GenotypeIDWithMafLine> regionGenotypes = new HashSet<GenotypeIDWithMafLine>();
 
 		// pick out the genotypes contained in the current region/pileup
-		// for (int i = 0; i < genotypeIDsWithMafLine.size(); i++)
-		for (GenotypeIDWithMafLine genotypeIDWithMafLine : genotypeIDsWithMafLine)
+		Interval interval = pileup.interval;
+		GenotypeIDWithMafLine[] genotypes = genotypesByContig
+				.get(interval.getContig());
+		if (genotypes == null)
 		{
-			if (genotypeIDWithMafLine == null
-					|| genotypeIDWithMafLine.genotypeID == null)
-			{
-				continue;
-			}
+			return;
+		}
 
-			if (pileup.contains(genotypeIDWithMafLine.genotypeID))
+		// first genotype starting in the region
+		int[] starts = genotypeStartsByContig.get(interval.getContig());
+		int i = Arrays.binarySearch(starts, interval.getStart());
+		if (i < 0)
+		{
+			i = -i - 1;
+		}
+
+		// binary search may land anywhere in a run of equal starts
+		while (i > 0 && starts[i - 1] == interval.getStart())
+		{
+			i--;
+		}
+
+		for (; i < genotypes.length && starts[i] <= interval.getEnd(); i++)
+		{
+			if (pileup.contains(genotypes[i].genotypeID))
 			{
-				regionGenotypes.add(genotypeIDWithMafLine);
+				regionGenotypes.add(genotypes[i]);
 			}
 		}
 
@@ -377,8 +493,9 @@ public class GenotypingProcessor implements PileupProcessor
 	 * 2. all combinations (power set) of genotypes with non-zero supporting
 	 * fragments
 	 * 
-	 * If non-zero genotypes are > 5, then top 5 by number of supporting
-	 * fragments are chosen to take the power set
+	 * If non-zero genotypes are > maxCompositeGenotypes, then top
+	 * maxCompositeGenotypes by number of supporting fragments are chosen to
+	 * take the power set
 	 * 
 	 * 
 	 * @param regionGenotypes
@@ -389,7 +506,7 @@ public class GenotypingProcessor implements PileupProcessor
 	{
 		StringBuilder result = null;
 
-		Map<Set<GenotypeIDWithMafLine>, Set<String>> powerSetFragments = getSupportingFragmentsForPowerSet(
+		Map<Set<GenotypeIDWithMafLine>, BitSet> powerSetFragments = getSupportingFragmentsForPowerSet(
 				regionGenotypes);
 
 		// process each element of the powerset
@@ -435,16 +552,10 @@ public class GenotypingProcessor implements PileupProcessor
 				genotypeIDs.add(id.genotypeID);
 			}
 
-			Set<String> spanningFragments = pileup
+			BitSet spanningFragments = pileup
 					.getValidSpanningFragments(genotypeIDs);
-			genotype.totalCoverage = spanningFragments.size();
-			for (String fragment : spanningFragments)
-			{
-				if (!pileup.fragmentSpans.get(fragment).isDuplicate())
-				{
-					genotype.uniqueCoverage++;
-				}
-			}
+			genotype.totalCoverage = spanningFragments.cardinality();
+			genotype.uniqueCoverage = pileup.countUnique(spanningFragments);
 
 			// record spanning fragments
 			// ContineousSpan span = computeSpan(s);
@@ -462,19 +573,15 @@ public class GenotypingProcessor implements PileupProcessor
 			// }
 			// }
 
-			Set<String> supportingFragments = powerSetFragments.get(s);
+			BitSet supportingFragments = powerSetFragments.get(s);
 
 			// record supporting fragments
 			if (supportingFragments != null)
 			{
-				genotype.totalSupportingCoverage = supportingFragments.size();
-				for (String fragment : supportingFragments)
-				{
-					if (!pileup.fragmentSpans.get(fragment).isDuplicate())
-					{
-						genotype.uniqueSupportingCoverage++;
-					}
-				}
+				genotype.totalSupportingCoverage = supportingFragments
+						.cardinality();
+				genotype.uniqueSupportingCoverage = pileup
+						.countUnique(supportingFragments);
 			}
 
 			// record genotype
@@ -541,20 +648,22 @@ public class GenotypingProcessor implements PileupProcessor
 
 	/**
 	 * Iterate over the powerset of the given set of genotypes and find the
-	 * fragments supporting each non-empty element of the powerset
+	 * fragments supporting each non-empty element of the powerset. The
+	 * supporting fragments of each element are computed from those of the
+	 * element without its last member, so each element costs one bitset AND.
 	 * 
 	 * @param sNVs
 	 * @return
 	 */
-	private Map<Set<GenotypeIDWithMafLine>, Set<String>> getSupportingFragmentsForPowerSet(
+	private Map<Set<GenotypeIDWithMafLine>, BitSet> getSupportingFragmentsForPowerSet(
 			Set<GenotypeIDWithMafLine> genotypeIDsWithName)
 	{
 		// find supporting fragments for individual genotypes
-		Map<GenotypeIDWithMafLine, Set<String>> supportingFragments = new HashMap<GenotypeIDWithMafLine, Set<String>>();
-		Set<GenotypeIDWithMafLine> nonZeroGenotypes = new HashSet<GenotypeIDWithMafLine>();
+		Map<GenotypeIDWithMafLine, BitSet> supportingFragments = new HashMap<GenotypeIDWithMafLine, BitSet>();
+		List<Entry<GenotypeIDWithMafLine, BitSet>> nonZeroGenotypes = new ArrayList<Entry<GenotypeIDWithMafLine, BitSet>>();
 		for (GenotypeIDWithMafLine genotypeIDWithName : genotypeIDsWithName)
 		{
-			Set<String> fragments = null;
+			BitSet fragments = null;
 			// MNV needs a bit of special treatment since only constituent SNVs
 			// are stored in the pileup
 			// if (genotypeIDWithName.genotypeID.type == GenotypeEventType.MNV)
@@ -569,121 +678,85 @@ public class GenotypingProcessor implements PileupProcessor
 
 			if (fragments == null)
 			{
-				fragments = new HashSet<String>();
+				fragments = new BitSet();
 			}
 			else
 			{
-				nonZeroGenotypes.add(genotypeIDWithName);
+				nonZeroGenotypes.add(new SimpleImmutableEntry<GenotypeIDWithMafLine, BitSet>(
+						genotypeIDWithName, fragments));
 			}
 
 			supportingFragments.put(genotypeIDWithName, fragments);
 		}
 
-		// compute powerset only for the genotypes with non-zero support
-		Set<Set<GenotypeIDWithMafLine>> powerSet = null;
-		if (nonZeroGenotypes.size() <= 5)
+		// compute powerset only for the genotypes with non-zero support, top
+		// maxCompositeGenotypes by number of supporting fragments
+		if (nonZeroGenotypes.size() > maxCompositeGenotypes)
 		{
-			// choose all non-zero genotypes
-			powerSet = Sets.powerSet(nonZeroGenotypes);
+			Collections.sort(nonZeroGenotypes, fragmentCountComparator);
+			nonZeroGenotypes = nonZeroGenotypes.subList(0,
+					maxCompositeGenotypes);
 		}
-		else
+
+		// element i of the powerset has the members whose bits are set in i
+		int powerSetSize = 1 << nonZeroGenotypes.size();
+		BitSet[] powerSetFragments = new BitSet[powerSetSize];
+		List<Set<GenotypeIDWithMafLine>> powerSet = new ArrayList<Set<GenotypeIDWithMafLine>>(
+				powerSetSize);
+		powerSet.add(null);
+		for (int i = 1; i < powerSetSize; i++)
 		{
-			// choose top 5 non-zero genotypes by number of supporting fragments
-			Set<Entry<GenotypeIDWithMafLine, Set<String>>> entries = supportingFragments
-					.entrySet();
-			List<Entry<GenotypeIDWithMafLine, Set<String>>> list = new ArrayList<Entry<GenotypeIDWithMafLine, Set<String>>>(
-					entries);
-			Collections.sort(list, fragmentCountComparator);
+			int last = 31 - Integer.numberOfLeadingZeros(i);
+			int rest = i & ~(1 << last);
+			Entry<GenotypeIDWithMafLine, BitSet> member = nonZeroGenotypes
+					.get(last);
 
-			Set<GenotypeIDWithMafLine> chosenGenotypeIDs = new HashSet<GenotypeIDWithMafLine>();
-			for (int i = 0; i < 5; i++)
+			Set<GenotypeIDWithMafLine> s = new HashSet<GenotypeIDWithMafLine>();
+			if (rest == 0)
 			{
-				if (list.get(i).getValue().size() == 0)
-				{
-					break;
-				}
-
-				chosenGenotypeIDs.add(list.get(i).getKey());
+				powerSetFragments[i] = member.getValue();
+			}
+			else
+			{
+				s.addAll(powerSet.get(rest));
+				powerSetFragments[i] = (BitSet) powerSetFragments[rest]
+						.clone();
+				powerSetFragments[i].and(member.getValue());
 			}
 
-			powerSet = Sets.powerSet(chosenGenotypeIDs);
-		}
-
-		Set<Set<GenotypeIDWithMafLine>> processingSet = new HashSet<Set<GenotypeIDWithMafLine>>(
-				powerSet);
-		// add individual genotypes to the processing set
-		for (GenotypeIDWithMafLine genotypeIDWithName : genotypeIDsWithName)
-		{
-			Set<GenotypeIDWithMafLine> s = new HashSet<GenotypeIDWithMafLine>();
-			s.add(genotypeIDWithName);
-			processingSet.add(s);
+			s.add(member.getKey());
+			powerSet.add(s);
 		}
 
-		powerSet = null;
-
 		// populate the returning set
-		Map<Set<GenotypeIDWithMafLine>, Set<String>> returningSet = new HashMap<Set<GenotypeIDWithMafLine>, Set<String>>();
-		for (Set<GenotypeIDWithMafLine> s : processingSet)
+		Map<Set<GenotypeIDWithMafLine>, BitSet> returningSet = new HashMap<Set<GenotypeIDWithMafLine>, BitSet>();
+		for (int i = 1; i < powerSetSize; i++)
 		{
-			if (s.isEmpty())
-			{
-				continue;
-			}
-
-			Set<String> fragments = getIntersection(s, supportingFragments);
-			returningSet.put(s, fragments);
-
+			returningSet.put(powerSet.get(i), powerSetFragments[i]);
 		}
 
-		return returningSet;
-	}
-
-	/**
-	 * find the fragments that have all the genotypes in genotypeIDs, using
-	 * fragment sets supporting individual genotypeIDs
-	 * 
-	 * @param genotypeIDs
-	 * @param supportingFragments
-	 * @return
-	 */
-	private Set<String> getIntersection(Set<GenotypeIDWithMafLine> genotypeIDs,
-			Map<GenotypeIDWithMafLine, Set<String>> supportingFragments)
-	{
-		Set<String> intersecting = null;
-		for (GenotypeIDWithMafLine genotypeIDWithName : genotypeIDs)
+		// add individual genotypes
+		for (GenotypeIDWithMafLine genotypeIDWithName : genotypeIDsWithName)
 		{
-			Set<String> supporting = supportingFragments
-					.get(genotypeIDWithName);
-
-			// if any member genotype has 0 supporting fragments, return empty
-			// set
-			if (supporting.isEmpty())
-			{
-				return new HashSet<String>();
-			}
-
-			// first member
-			// make sure to copy the set to avoid obscure bugs
-			if (intersecting == null)
-			{
-				intersecting = new HashSet<String>(supporting);
-			}
-			else
+			Set<GenotypeIDWithMafLine> s = new HashSet<GenotypeIDWithMafLine>();
+			s.add(genotypeIDWithName);
+			if (!returningSet.containsKey(s))
 			{
-				intersecting.retainAll(supporting);
+				returningSet.put(s,
+						supportingFragments.get(genotypeIDWithName));
 			}
 		}
 
-		return intersecting;
+		return returningSet;
 	}
 
-	private Set<String> getMNVSupportingFragments(GenotypeID genotypeID)
+	private BitSet getMNVSupportingFragments(GenotypeID genotypeID)
 	{
 		List<GenotypeID> SNVs = MNVToSNVs(genotypeID);
-		Set<String> intersecting = null;
+		BitSet intersecting = null;
 		for (GenotypeID SNV : SNVs)
 		{
-			Set<String> fragments = pileup.genotypes.get(SNV);
+			BitSet fragments = pileup.genotypes.get(SNV);
 
 			// if one of the constituent SNVs has zero support, then the MNV has
 			// zero support
@@ -696,11 +769,11 @@ public class GenotypingProcessor implements PileupProcessor
 			// make sure to copy the set to avoid obscure bugs
 			if (intersecting == null)
 			{
-				intersecting = new HashSet<String>(fragments);
+				intersecting = (BitSet) fragments.clone();
 			}
 			else
 			{
-				intersecting.retainAll(fragments);
+				intersecting.and(fragments);
 			}
 		}
 
@@ -26,7 +26,7 @@
  */
 package org.mskcc.juber.waltz.pileup.processors;
 
-import org.mskcc.juber.waltz.pileup.PositionPileup;
+import org.mskcc.juber.waltz.pileup.PileupColumns;
 
 import htsjdk.samtools.util.Interval;
 
@@ -38,47 +38,76 @@ public class IntervalMetrics
 {
 	private Interval interval;
 	private int length;
-	private double gcContent;
-	private double averageCoverage;
+	private long gcBases;
+	private long totalCoverage;
 	private int peakCoverage;
 	private int fragmentsMapped;
 
-	public IntervalMetrics(Interval interval, PositionPileup[] positions,
-			int fragmentsMapped)
+	/**
+	 * metrics for the given interval, with positions to be added in chunks
+	 * 
+	 * @param interval
+	 */
+	public IntervalMetrics(Interval interval)
 	{
-		this.fragmentsMapped = fragmentsMapped;
 		this.interval = interval;
 		this.length = interval.getEnd() - interval.getStart() + 1;
-		int lastValidPositionIndex = interval.getEnd() - interval.getStart();
+	}
 
-		// iterate over position pileups
-		for (int i = 0; i <= lastValidPositionIndex; i++)
-		{
-			PositionPileup positionPileup = positions[i];
+	public IntervalMetrics(Interval interval, PileupColumns columns,
+			int fragmentsMapped)
+	{
+		this(interval);
+		add(columns, length);
+		setFragmentsMapped(fragmentsMapped);
+	}
 
-			byte refBase = positionPileup.getRefBase();
+	/**
+	 * add the next chunk of positions of the interval
+	 * 
+	 * @param columns
+	 * @param count
+	 *            number of positions in the chunk, starting at index 0
+	 */
+	public void add(PileupColumns columns, int count)
+	{
+		byte[] refBases = columns.refBases;
+		int[] aCounts = columns.aCounts;
+		int[] cCounts = columns.cCounts;
+		int[] gCounts = columns.gCounts;
+		int[] tCounts = columns.tCounts;
+		int[] deletions = columns.deletions;
+
+		for (int i = 0; i < count; i++)
+		{
+			byte refBase = refBases[i];
 			if (refBase == 'C' || refBase == 'c' || refBase == 'G'
 					|| refBase == 'g')
 			{
-				gcContent = gcContent + 1;
+				gcBases++;
 			}
+		}
 
-			int coverage = positionPileup.getCoverage();
-			averageCoverage = averageCoverage + coverage;
-
-			if (peakCoverage < coverage)
-			{
-				peakCoverage = coverage;
-			}
+		// coverage as in PileupColumns.getCoverage()
+		for (int i = 0; i < count; i++)
+		{
+			int coverage = aCounts[i] + cCounts[i] + gCounts[i] + tCounts[i]
+					+ deletions[i];
+			totalCoverage += coverage;
+			peakCoverage = Math.max(peakCoverage, coverage);
 		}
+	}
 
-		// divide
-		gcContent = gcContent / length;
-		averageCoverage = averageCoverage / length;
+	public void setFragmentsMapped(int fragmentsMapped)
+	{
+		this.fragmentsMapped = fragmentsMapped;
 	}
 
 	public String toString()
 	{
+		double gcContent = (double) gcBases / length;
+		double averageCoverage = (double) totalCoverage / length;
+
 		StringBuilder intervalOutput = new StringBuilder();
 		intervalOutput.append(interval.getContig()).append("\t")
 				.append(interval.getStart()).append("\t")
@@ -30,16 +30,46 @@ import java.io.IOException;
 
 import org.mskcc.juber.waltz.WaltzOutput;
 import org.mskcc.juber.waltz.pileup.Fragment;
-import org.mskcc.juber.waltz.pileup.PositionPileup;
+import org.mskcc.juber.waltz.pileup.PileupColumns;
 import org.mskcc.juber.waltz.pileup.RegionPileupView;
+import org.mskcc.juber.waltz.pileup.binary.PileupBlockEncoder;
+
+import htsjdk.samtools.util.Interval;
 
 /**
  * @author Juber Patel
  *
  */
-public class PileupMetricsProcessor implements PileupProcessor
+public class PileupMetricsProcessor implements ChunkedPileupProcessor
 {
 	private RegionPileupView pileup;
+	/**
+	 * encoder for the binary pileup format, null for the text format
+	 */
+	private PileupBlockEncoder encoder;
+	/**
+	 * metrics of the interval being processed in chunks
+	 */
+	private IntervalMetrics intervalMetrics;
+	private IntervalMetrics intervalMetricsWithoutDuplicates;
+
+	public PileupMetricsProcessor()
+	{
+		this(false);
+	}
+
+	/**
+	 * 
+	 * @param binaryPileup
+	 *            write the pileups in the binary format instead of text
+	 */
+	public PileupMetricsProcessor(boolean binaryPileup)
+	{
+		if (binaryPileup)
+		{
+			encoder = new PileupBlockEncoder();
+		}
+	}
 
 	@Override
 	public void setRegionPileupView(RegionPileupView view)
@@ -57,6 +87,47 @@ public class PileupMetricsProcessor implements PileupProcessor
 		this.pileup = null;
 	}
 
+	@Override
+	public void startInterval(Interval interval)
+	{
+		intervalMetrics = new IntervalMetrics(interval);
+		intervalMetricsWithoutDuplicates = new IntervalMetrics(interval);
+	}
+
+	@Override
+	public void processChunk(RegionPileupView chunk, WaltzOutput output)
+			throws IOException
+	{
+		this.pileup = chunk;
+		processPileup(output);
+
+		int length = chunk.lastValidPositionIndex + 1;
+		intervalMetrics.add(chunk.columns, length);
+		intervalMetricsWithoutDuplicates.add(chunk.columnsWithoutDuplicates,
+				length);
+		this.pileup = null;
+	}
+
+	@Override
+	public void finishInterval(int fragments, int uniqueFragments,
+			WaltzOutput output) throws IOException
+	{
+		intervalMetrics.setFragmentsMapped(fragments);
+		output.toIntervalsWriter(intervalMetrics.toString());
+		intervalMetricsWithoutDuplicates.setFragmentsMapped(uniqueFragments);
+		output.toIntervalsWithoutDuplicatesWriter(
+				intervalMetricsWithoutDuplicates.toString());
+
+		intervalMetrics = null;
+		intervalMetricsWithoutDuplicates = null;
+	}
+
+	@Override
+	public PileupProcessor copy()
+	{
+		return new PileupMetricsProcessor(encoder != null);
+	}
+
 	/**
 	 * process the pileup-level info
 	 * 
@@ -72,14 +143,24 @@ public class PileupMetricsProcessor implements PileupProcessor
 			return;
 		}
 
+		if (encoder != null)
+		{
+			int length = pileup.lastValidPositionIndex + 1;
+			output.toBinaryPileupWriter(pileup.interval,
+					encoder.encode(pileup.columns, length));
+			output.toBinaryPileupWithoutDuplicatesWriter(pileup.interval,
+					encoder.encode(pileup.columnsWithoutDuplicates, length));
+			return;
+		}
+
 		StringBuilder pileupOut = new StringBuilder();
 		StringBuilder pileupWithoutDuplicatesOut = new StringBuilder();
 
 		// iterate over positions and collect numbers
 		for (int i = 0; i <= pileup.lastValidPositionIndex; i++)
 		{
-			addToPileup(pileup.positions, i, pileupOut);
-			addToPileup(pileup.positionsWithoutDuplicates, i,
+			addToPileup(pileup.columns, i, pileupOut);
+			addToPileup(pileup.columnsWithoutDuplicates, i,
 					pileupWithoutDuplicatesOut);
 		}
 
@@ -89,12 +170,14 @@ public class PileupMetricsProcessor implements PileupProcessor
 				pileupWithoutDuplicatesOut.toString());
 	}
 
-	private void addToPileup(PositionPileup[] positions, int index,
+	private void addToPileup(PileupColumns columns, int index,
 			StringBuilder pileupOut)
 	{
 		int pos = pileup.interval.getStart() + index;
 		pileupOut.append(pileup.interval.getContig()).append("\t").append(pos)
-				.append("\t").append(positions[index].toString()).append("\n");
+				.append("\t");
+		columns.appendTo(index, pileupOut);
+		pileupOut.append("\n");
 	}
 
 	/**
@@ -114,12 +197,12 @@ public class PileupMetricsProcessor implements PileupProcessor
 
 		// collect and write interval-level metrics
 		IntervalMetrics intervalMetrics = new IntervalMetrics(pileup.interval,
-				pileup.positions, pileup.fragmentSpans.size());
+				pileup.columns, pileup.fragmentSpans.size());
 		output.toIntervalsWriter(intervalMetrics.toString());
 
 		// count unique fragments
 		int uniqueFragments = 0;
-		for (Fragment fragment : pileup.fragmentSpans.values())
+		for (Fragment fragment : pileup.fragmentSpans)
 		{
 			if (!fragment.isDuplicate())
 			{
@@ -128,7 +211,7 @@ public class PileupMetricsProcessor implements PileupProcessor
 		}
 
 		IntervalMetrics intervalMetricsWithoutDuplicates = new IntervalMetrics(
-				pileup.interval, pileup.positionsWithoutDuplicates,
+				pileup.interval, pileup.columnsWithoutDuplicates,
 				uniqueFragments);
 		output.toIntervalsWithoutDuplicatesWriter(
 				intervalMetricsWithoutDuplicates.toString());
@@ -38,4 +38,12 @@ public interface PileupProcessor
 	public void setRegionPileupView(RegionPileupView view);
 
 	public void processRegion(WaltzOutput output) throws IOException;
+
+	/**
+	 * make a processor that can work independently of this one, e.g. on
+	 * another thread. Read-only state may be shared.
+	 * 
+	 * @return
+	 */
+	public PileupProcessor copy();
 }
@@ -34,17 +34,21 @@ import org.mskcc.juber.waltz.pileup.processors.signatures.PileupSignature;
 import org.mskcc.juber.waltz.pileup.processors.signatures.SignatureLocus;
 import org.mskcc.juber.waltz.pileup.processors.signatures.TranslocationBreakpointSignature;
 
+import htsjdk.samtools.util.Interval;
+
 /**
  * @author Juber Patel
  *
  */
-public class SignatureFindingProcessor implements PileupProcessor
+public class SignatureFindingProcessor implements ChunkedPileupProcessor
 {
 	private RegionPileupView pileup;
+	private String moduleArgument;
 	private List<PileupSignature> signatures;
 
 	public SignatureFindingProcessor(String moduleArgument)
 	{
+		this.moduleArgument = moduleArgument;
 		setSignaturesToLookFor(moduleArgument);
 	}
 
@@ -79,6 +83,33 @@ public class SignatureFindingProcessor implements PileupProcessor
 		this.pileup = null;
 	}
 
+	@Override
+	public void startInterval(Interval interval)
+	{
+		// the signatures are position level, nothing to set up
+	}
+
+	@Override
+	public void processChunk(RegionPileupView chunk, WaltzOutput output)
+			throws IOException
+	{
+		setRegionPileupView(chunk);
+		processRegion(output);
+	}
+
+	@Override
+	public void finishInterval(int fragments, int uniqueFragments,
+			WaltzOutput output) throws IOException
+	{
+		// nothing to do
+	}
+
+	@Override
+	public PileupProcessor copy()
+	{
+		return new SignatureFindingProcessor(moduleArgument);
+	}
+
 	private void setSignaturesToLookFor(String moduleArgument)
 	{
 		signatures = new ArrayList<PileupSignature>();
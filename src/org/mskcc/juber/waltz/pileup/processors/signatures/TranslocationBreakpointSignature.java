@@ -29,7 +29,7 @@ package org.mskcc.juber.waltz.pileup.processors.signatures;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.mskcc.juber.waltz.pileup.PositionPileup;
+import org.mskcc.juber.waltz.pileup.PileupColumns;
 import org.mskcc.juber.waltz.pileup.RegionPileupView;
 
 /**
@@ -49,12 +49,20 @@ public class TranslocationBreakpointSignature implements PileupSignature
 	{
 		List<SignatureLocus> loci = new ArrayList<SignatureLocus>();
 
-		PositionPileup[] positions = pileup.positionsWithoutDuplicates;
+		PileupColumns columns = pileup.columnsWithoutDuplicates;
+		int[] hardClipStarts = columns.hardClipStarts;
+		int[] hardClipEnds = columns.hardClipEnds;
 		int lastValidPositionIndex = pileup.interval.getEnd()
 				- pileup.interval.getStart();
 		for (int i = 0; i <= lastValidPositionIndex; i++)
 		{
-			int total = positions[i].getCoverage();
+			// most positions have no hard clips, check them first
+			if (hardClipStarts[i] == 0 && hardClipEnds[i] == 0)
+			{
+				continue;
+			}
+
+			int total = columns.getCoverage(i);
 			if (total < minTotalReads)
 			{
 				continue;
@@ -62,15 +70,14 @@ public class TranslocationBreakpointSignature implements PileupSignature
 
 			String description = null;
 			int clips = 0;
-			if (positions[i].getHardClipStarts() > positions[i]
-					.getHardClipEnds())
+			if (hardClipStarts[i] > hardClipEnds[i])
 			{
-				clips = positions[i].getHardClipStarts();
+				clips = hardClipStarts[i];
 				description = "3' Translocation Breakpoint";
 			}
 			else
 			{
-				clips = positions[i].getHardClipEnds();
+				clips = hardClipEnds[i];
 				description = "5' Translocation Breakpoint";
 			}
 